@@ -0,0 +1,378 @@
+package Main;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs a whole folder of queries against one or several hyperplanes tables on an executor.
+ *
+ * With a single table, the queries are first hashed in parallel. Queries falling into the same bucket (the same
+ * leaf bucket when the bucket was split) are then grouped, so the candidate emails of every bucket are loaded once and scored against all the queries of the group.
+ * The neighbouring buckets given by multi-probe are then visited query by query.
+ * With several tables, every query merges the candidates of all the tables first, see MultiTableQueryEngine.
+ * Every query ends up with the same nearest distance as successive part2 calls over the tables.
+ * Queries can also be classified by a vote of their k nearest neighbours, see classify.
+ */
+class BatchQueryRunner {
+
+    private final Main main;
+    private final DocumentTable documents;
+    private final VectorStore vectorStore;
+    private final ExecutorService executor;
+    private final int probeBudget;
+    private final MultiTableQueryEngine engine;
+
+    /**
+     * Result of one query over all the tables
+     */
+    static class QueryResult {
+        final String queryPath;
+        final double distance;
+        /** Id of the nearest email, -1 if no table had a subset with the query signature */
+        final int neighbourId;
+        /** Path of the nearest email, "No" if no table had a subset with the query signature */
+        final String neighbourPath;
+        /** Number of distinct candidate emails scored */
+        final int numberCandidates;
+        /** Time spent on this query by the workers */
+        final long elapsedNanos;
+
+        QueryResult(String queryPath, double distance, int neighbourId, String neighbourPath, int numberCandidates,
+                    long elapsedNanos) {
+            this.queryPath = queryPath;
+            this.distance = distance;
+            this.neighbourId = neighbourId;
+            this.neighbourPath = neighbourPath;
+            this.numberCandidates = numberCandidates;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * Classification of one query by its nearest neighbours over all the tables
+     */
+    static class Classification {
+        final String queryPath;
+        final boolean spam;
+        /** The voting neighbours, nearest first */
+        final List<KnnClassifier.Neighbour> neighbours;
+        /** The nearest candidate over all the candidates, null if there is none or it was not searched */
+        final KnnClassifier.Neighbour nearest;
+        /** Number of candidates scored before the search completed */
+        final int numberScored;
+        final long elapsedNanos;
+
+        Classification(String queryPath, boolean spam, List<KnnClassifier.Neighbour> neighbours,
+                       KnnClassifier.Neighbour nearest, int numberScored, long elapsedNanos) {
+            this.queryPath = queryPath;
+            this.spam = spam;
+            this.neighbours = neighbours;
+            this.nearest = nearest;
+            this.numberScored = numberScored;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * @param main The instance computing the email signatures
+     * @param documents The table giving the paths of the emails
+     * @param vectorStore The store giving the vectors of the queries and of the candidate emails
+     * @param executor The executor running the queries
+     * @param probeBudget The maximal number of neighbouring buckets visited per table, 0 only visits the query bucket
+     */
+    BatchQueryRunner(Main main, DocumentTable documents, VectorStore vectorStore, ExecutorService executor,
+                     int probeBudget) {
+        this.probeBudget = probeBudget;
+        this.main = main;
+        this.documents = documents;
+        this.vectorStore = vectorStore;
+        this.executor = executor;
+        this.engine = new MultiTableQueryEngine(main, documents, vectorStore, probeBudget);
+    }
+
+    /**
+     * Runs all the queries against the tables
+     * @param queries The query emails
+     * @param tables The hyperplanes tables, in the order part2 would be called on them
+     * @return The results, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    List<QueryResult> run(List<File> queries, List<LshTable> tables) throws Exception {
+        if(tables.size() != 1) {
+            return this.runMultiTable(queries, tables);
+        }
+        LshTable table = tables.get(0);
+
+        int numberQueries = queries.size();
+        String[] paths = new String[numberQueries];
+        int[][] wordHashes = new int[numberQueries][];
+        int[][] buckets = new int[numberQueries][];
+        SparseVector[] vectors = new SparseVector[numberQueries];
+        long[][] signatures = new long[numberQueries][];
+        double[] distances = new double[numberQueries];
+        int[] neighbours = new int[numberQueries];
+        int[] numberCandidates = new int[numberQueries];
+        AtomicLongArray elapsed = new AtomicLongArray(numberQueries);
+
+        // Hash every query
+        List<Callable<Void>> hashingTasks = new ArrayList<>();
+        for(int i = 0; i < numberQueries; i++) {
+            final int query = i;
+            hashingTasks.add(() -> {
+                long startTimer = System.nanoTime();
+                paths[query] = queries.get(query).getAbsolutePath();
+                String content = Main.getEmailContent(paths[query]);
+                vectors[query] = this.vectorStore.get(paths[query]);
+                signatures[query] = this.main.getProbedSignatures(table.hyperplanes, content, this.probeBudget);
+                wordHashes[query] = LshTable.wordHashes(tables, content);
+                long lookupTimer = System.nanoTime();
+                buckets[query] = table.get(signatures[query][0], wordHashes[query]);
+                Metrics.record(Metrics.Stage.BUCKET_LOOKUP, lookupTimer);
+                Metrics.recordLookup(buckets[query]);
+                elapsed.addAndGet(query, System.nanoTime() - startTimer);
+                return null;
+            });
+        }
+        BatchQueryRunner.invokeAll(this.executor, hashingTasks);
+
+        // Score every group of queries sharing a bucket, the leaf bucket when the bucket was split
+        Map<int[], List<Integer>> groups = new IdentityHashMap<>();
+        for(int i = 0; i < numberQueries; i++) {
+            groups.computeIfAbsent(buckets[i], k -> new ArrayList<>()).add(i);
+        }
+        List<Callable<Void>> scoringTasks = new ArrayList<>();
+        for(Map.Entry<int[], List<Integer>> group : groups.entrySet()) {
+            scoringTasks.add(() -> {
+                this.scoreGroup(table, group.getKey(), group.getValue(), signatures, wordHashes, vectors, distances,
+                        neighbours, numberCandidates, elapsed);
+                return null;
+            });
+        }
+        BatchQueryRunner.invokeAll(this.executor, scoringTasks);
+
+        List<QueryResult> results = new ArrayList<>(numberQueries);
+        for(int i = 0; i < numberQueries; i++) {
+            String neighbourPath = neighbours[i] < 0 ? "No" : this.documents.getPath(neighbours[i]);
+            results.add(new QueryResult(paths[i], distances[i], neighbours[i], neighbourPath, numberCandidates[i],
+                    elapsed.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Runs all the queries against several tables, every query merging the candidates of all the tables
+     * so an email is scored once even if several tables found it
+     * @param queries The query emails
+     * @param tables The hyperplanes tables
+     * @return The results, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    private List<QueryResult> runMultiTable(List<File> queries, List<LshTable> tables) throws Exception {
+        QueryResult[] results = new QueryResult[queries.size()];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int i = 0; i < queries.size(); i++) {
+            final int query = i;
+            tasks.add(() -> {
+                results[query] = this.engine.query(queries.get(query), tables);
+                return null;
+            });
+        }
+        BatchQueryRunner.invokeAll(this.executor, tasks);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Classifies all the queries by a vote of their nearest neighbours over the tables.
+     * The buckets of every query are visited table by table, its own bucket first, until its search is complete.
+     * @param queries The query emails
+     * @param tables The hyperplanes tables
+     * @param classifier The classifier giving the search of every query
+     * @return The classifications, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    List<Classification> classify(List<File> queries, List<LshTable> tables, KnnClassifier classifier)
+            throws Exception {
+        Classification[] classifications = new Classification[queries.size()];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int i = 0; i < queries.size(); i++) {
+            final int query = i;
+            tasks.add(() -> {
+                classifications[query] = this.classify(queries.get(query), tables, classifier);
+                return null;
+            });
+        }
+        BatchQueryRunner.invokeAll(this.executor, tasks);
+        return Arrays.asList(classifications);
+    }
+
+    /**
+     * Classifies one query, scoring every candidate email once even if several tables found it
+     * @param query The query email
+     * @param tables The hyperplanes tables
+     * @param classifier The classifier giving the search of the query
+     * @return The classification of the query
+     * @throws Exception If some file was not to be found
+     */
+    private Classification classify(File query, List<LshTable> tables, KnnClassifier classifier) throws Exception {
+        long startTimer = System.nanoTime();
+        String path = query.getAbsolutePath();
+        String content = Main.getEmailContent(path);
+        SparseVector vector = this.vectorStore.get(path);
+        return this.classify(path, content, vector, tables, classifier, false, startTimer);
+    }
+
+    /**
+     * Classifies one query given by its content, scoring every candidate email once even if several tables found it
+     * @param path The path of the query, only kept in the classification
+     * @param content The content of the query email
+     * @param vector The vector of the query email
+     * @param tables The hyperplanes tables
+     * @param classifier The classifier giving the search of the query
+     * @param findNearest True to also find the nearest candidate. The search may complete before every candidate
+     *                    is scored, the candidates left are then only compared with the nearest neighbour so far.
+     * @param startTimer The value of System.nanoTime() when the query started
+     * @return The classification of the query
+     * @throws Exception If some file was not to be found
+     */
+    Classification classify(String path, String content, SparseVector vector, List<LshTable> tables,
+                            KnnClassifier classifier, boolean findNearest, long startTimer) throws Exception {
+        KnnClassifier.Search search = classifier.newSearch();
+        int[] candidates = this.engine.candidates(content, tables);
+        long scoringTimer = System.nanoTime();
+        int scored = 0;
+        while(scored < candidates.length) {
+            int emailId = candidates[scored++];
+            SparseVector candidate = this.vectorStore.get(this.documents.getPath(emailId));
+            if(search.offer(emailId, vector.distance(candidate))) {
+                break;
+            }
+        }
+        List<KnnClassifier.Neighbour> neighbours = search.neighbours();
+        KnnClassifier.Neighbour nearest = findNearest && !neighbours.isEmpty() ? neighbours.get(0) : null;
+        if(nearest != null && scored < candidates.length) {
+            double cosine = vector.cosine(this.vectorStore.get(this.documents.getPath(nearest.emailId)));
+            int neighbour = nearest.emailId;
+            for(; scored < candidates.length; scored++) {
+                double tmpCosine = vector.cosineAbove(
+                        this.vectorStore.get(this.documents.getPath(candidates[scored])), cosine);
+                if(tmpCosine > cosine) {
+                    cosine = tmpCosine;
+                    neighbour = candidates[scored];
+                }
+            }
+            if(neighbour != nearest.emailId) {
+                nearest = new KnnClassifier.Neighbour(neighbour, SparseVector.toDistance(cosine),
+                        this.documents.getMultiplicity(neighbour));
+            }
+        }
+        Metrics.record(Metrics.Stage.SCORING, scoringTimer);
+        Metrics.recordCandidates(scored);
+        return new Classification(path, search.isSpam(), neighbours, nearest, search.getNumberScored(),
+                System.nanoTime() - startTimer);
+    }
+
+    /**
+     * Scores all the queries of a group against the candidate emails of their common bucket,
+     * then against the candidate emails of their neighbouring buckets
+     * @param table The hyperplanes table
+     * @param bucket The common bucket of the group, null if it is empty
+     * @param group The indexes of the queries in the group
+     * @param signatures The signatures to visit for every query, its own signature first
+     * @param wordHashes The word hashes of all the queries given by LshTable.wordHashes
+     * @param vectors The vectors of all the queries
+     * @param distances Receives the minimal distance of every query
+     * @param neighbours Receives the id of the nearest email of every query, -1 if there is none
+     * @param numberCandidates Receives the number of candidate emails of every query
+     * @param elapsed Receives the time spent on every query
+     * @throws Exception If some file was not to be found
+     */
+    private void scoreGroup(LshTable table, int[] bucket, List<Integer> group, long[][] signatures, int[][] wordHashes,
+                            SparseVector[] vectors, double[] distances, int[] neighbours, int[] numberCandidates,
+                            AtomicLongArray elapsed) throws Exception {
+        long startTimer = System.nanoTime();
+        SparseVector[] candidates = this.loadCandidates(bucket);
+        long loadingTime = (System.nanoTime() - startTimer) / group.size();
+
+        for(int query : group) {
+            startTimer = System.nanoTime();
+            double cosine = Double.NEGATIVE_INFINITY;
+            int neighbour = -1;
+            int scored = candidates.length;
+            if(bucket != null) {
+                for(int i = 0; i < candidates.length; i++) {
+                    double tmpCosine = vectors[query].cosineAbove(candidates[i], cosine);
+                    if(tmpCosine > cosine) {
+                        cosine = tmpCosine;
+                        neighbour = bucket[i];
+                    }
+                }
+            }
+
+            for(int probe = 1; probe < signatures[query].length; probe++) {
+                long lookupTimer = System.nanoTime();
+                int[] probedBucket = table.get(signatures[query][probe], wordHashes[query]);
+                Metrics.record(Metrics.Stage.BUCKET_LOOKUP, lookupTimer);
+                Metrics.recordLookup(probedBucket);
+                if(probedBucket == null) {
+                    continue;
+                }
+                SparseVector[] probedCandidates = this.loadCandidates(probedBucket);
+                scored += probedCandidates.length;
+                for(int i = 0; i < probedCandidates.length; i++) {
+                    double tmpCosine = vectors[query].cosineAbove(probedCandidates[i], cosine);
+                    if(tmpCosine > cosine) {
+                        cosine = tmpCosine;
+                        neighbour = probedBucket[i];
+                    }
+                }
+            }
+
+            Metrics.record(Metrics.Stage.SCORING, startTimer);
+            Metrics.recordCandidates(scored);
+            distances[query] = neighbour < 0 ? Math.PI / 2 : SparseVector.toDistance(cosine);
+            neighbours[query] = neighbour;
+            numberCandidates[query] = scored;
+            elapsed.addAndGet(query, loadingTime + System.nanoTime() - startTimer);
+        }
+    }
+
+    /**
+     * Get the vectors of the emails of a bucket
+     * @param bucket The ids of the emails, may be null
+     * @return The vectors, in the order of the bucket
+     * @throws Exception If some file was not to be found
+     */
+    private SparseVector[] loadCandidates(int[] bucket) throws Exception {
+        if(bucket == null) {
+            return new SparseVector[0];
+        }
+        SparseVector[] candidates = new SparseVector[bucket.length];
+        for(int i = 0; i < bucket.length; i++) {
+            candidates[i] = this.vectorStore.get(this.documents.getPath(bucket[i]));
+        }
+        return candidates;
+    }
+
+    /**
+     * Runs tasks on an executor and waits for all of them, rethrowing the first failure
+     * @param executor The executor
+     * @param tasks The tasks
+     * @throws Exception The exception thrown by a task
+     */
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws Exception {
+        for(Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+}
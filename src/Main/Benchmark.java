@@ -0,0 +1,291 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Micro and macro benchmarks of the hot paths, on a synthetic corpus so results are reproducible.
+ *
+ * Every benchmark is run for warmup iterations first, so the JIT has compiled the code, then for measurement
+ * iterations of a fixed duration. Results are printed as CSV on the standard output, one line per benchmark :
+ * benchmark,corpus,hyperplanes,tables,ns_per_op,error_ns,ops_per_s
+ * where error_ns is the standard deviation over the measurement iterations.
+ *
+ * Usage : java Main.Benchmark [corpus=1000,10000] [hyperplanes=4,16] [tables=1,4] [warmup=3] [iterations=5]
+ *                             [time=500] [filter=name]
+ */
+class Benchmark {
+
+    private final static int numberQueries = 100;
+    private final static long corpusSeed = 438L;
+
+    /** Results of the benchmarked code are accumulated here so the JIT cannot remove it */
+    private static volatile long sink;
+
+    private interface Invocation {
+        long invoke() throws Exception;
+    }
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final String filter;
+
+    private Benchmark(int warmupIterations, int measurementIterations, long iterationMillis, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int[] corpusSizes = Benchmark.parseInts(options.getOrDefault("corpus", "1000,10000"));
+        int[] hyperplaneCounts = Benchmark.parseInts(options.getOrDefault("hyperplanes", "4,16"));
+        int[] tableCounts = Benchmark.parseInts(options.getOrDefault("tables", "1,4"));
+        Benchmark benchmark = new Benchmark(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")),
+                Long.parseLong(options.getOrDefault("time", "500")), options.getOrDefault("filter", ""));
+
+        System.err.println("[INFO] Feature hashing kernel : " + FeatureHashing.getKernelName());
+        System.out.println("benchmark,corpus,hyperplanes,tables,ns_per_op,error_ns,ops_per_s");
+        for(int corpusSize : corpusSizes) {
+            benchmark.run(corpusSize, hyperplaneCounts, tableCounts);
+        }
+    }
+
+    /**
+     * Runs every benchmark on a corpus of the given size
+     * @param corpusSize The number of emails in the corpus
+     * @param hyperplaneCounts The numbers of hyperplanes per table to benchmark
+     * @param tableCounts The numbers of tables to benchmark
+     * @throws Exception If the corpus could not be written
+     */
+    private void run(int corpusSize, int[] hyperplaneCounts, int[] tableCounts) throws Exception {
+        File directory = Files.createTempDirectory("lsh-benchmark").toFile();
+        try {
+            SyntheticCorpus corpus = new SyntheticCorpus(corpusSeed);
+            List<List<File>> files = Collections.singletonList(corpus.writeEmails(new File(directory, "corpus"), corpusSize));
+            List<File> queries = corpus.writeEmails(new File(directory, "queries"), numberQueries);
+
+            Main main = new Main();
+            // The synthetic corpus is packed into the temporary directory, deleted with it
+            main.setIndexDirectory(new File(directory, "index"), "corpus-benchmark");
+            List<String> contents = new ArrayList<>();
+            List<Map<String, Integer>> maps = new ArrayList<>();
+            List<SparseVector> vectors = new ArrayList<>();
+            for(File email : files.get(0)) {
+                String content = Main.getEmailContent(email.getPath());
+                contents.add(content);
+                maps.add(main.convert(content));
+                vectors.add(main.vectorize(content));
+            }
+            int[] position = new int[1];
+
+            this.measure("convert", corpusSize, 0, 0, 1, () ->
+                    main.convert(contents.get(Benchmark.next(position, corpusSize))).size());
+            this.measure("vectorize", corpusSize, 0, 0, 1, () ->
+                    main.vectorize(contents.get(Benchmark.next(position, corpusSize))).size());
+            this.measure("computeDistance", corpusSize, 0, 0, 1, () -> {
+                int i = Benchmark.next(position, corpusSize);
+                return Double.doubleToRawLongBits(main.computeDistance(maps.get(i), maps.get((i * 31 + 7) % corpusSize)));
+            });
+            this.measure("sparseDistance", corpusSize, 0, 0, 1, () -> {
+                int i = Benchmark.next(position, corpusSize);
+                return Double.doubleToRawLongBits(vectors.get(i).distance(vectors.get((i * 31 + 7) % corpusSize)));
+            });
+            this.measure("nearestByDistance", corpusSize, 0, 0, corpusSize, () -> {
+                SparseVector query = vectors.get(Benchmark.next(position, corpusSize));
+                double distance = Double.MAX_VALUE;
+                for(SparseVector vector : vectors) {
+                    if(vector != query)
+                        distance = Math.min(distance, query.distance(vector));
+                }
+                return Double.doubleToRawLongBits(distance);
+            });
+            this.measure("nearestByPrunedCosine", corpusSize, 0, 0, corpusSize, () -> {
+                SparseVector query = vectors.get(Benchmark.next(position, corpusSize));
+                double cosine = Double.NEGATIVE_INFINITY;
+                for(SparseVector vector : vectors) {
+                    if(vector != query)
+                        cosine = Math.max(cosine, query.cosineAbove(vector, cosine));
+                }
+                return Double.doubleToRawLongBits(SparseVector.toDistance(cosine));
+            });
+
+            for(int numberHyperplanes : hyperplaneCounts) {
+                List<HashFunction> hyperplanes = main.constructHyperplanes(numberHyperplanes, 264738391);
+                this.measure("aboveUnderHyperplane", corpusSize, numberHyperplanes, 0, 1, () -> {
+                    String content = contents.get(Benchmark.next(position, corpusSize));
+                    long above = 0;
+                    for(HashFunction hyperplane : hyperplanes) {
+                        above += main.aboveUnderHyperplane(hyperplane, content) ? 1 : 0;
+                    }
+                    return above;
+                });
+                this.measure("projectionEngine", corpusSize, numberHyperplanes, 0, 1, () ->
+                        ProjectionEngine.aboveUnderHyperplanes(hyperplanes, contents.get(Benchmark.next(position, corpusSize))).length);
+                this.measure("featureHashing", corpusSize, numberHyperplanes, 0, 1, () ->
+                        FeatureHashing.signature(hyperplanes, contents.get(Benchmark.next(position, corpusSize))));
+
+                for(int numberTables : tableCounts) {
+                    this.runTables(main, files, queries, numberHyperplanes, numberTables);
+                }
+            }
+        } finally {
+            Benchmark.delete(directory);
+        }
+    }
+
+    /**
+     * Runs the build and query benchmarks for a number of tables
+     * @param main The instance building and querying the tables
+     * @param files The corpus
+     * @param queries The query emails
+     * @param numberHyperplanes The number of hyperplanes per table
+     * @param numberTables The number of tables
+     * @throws Exception If some file was not to be found
+     */
+    private void runTables(Main main, List<List<File>> files, List<File> queries, int numberHyperplanes,
+                           int numberTables) throws Exception {
+        int corpusSize = files.get(0).size();
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<List<HashFunction>> hyperplanes = new ArrayList<>();
+        for(int t = 0; t < numberTables; t++) {
+            hyperplanes.add(main.constructHyperplanes(numberHyperplanes, 264738391 + 131071 * t));
+        }
+
+        this.measure("getHyperplanesSubset", corpusSize, numberHyperplanes, numberTables, 1, () -> {
+            long size = 0;
+            for(List<HashFunction> table : hyperplanes) {
+                size += main.getHyperplanesSubset(table, files, 1).size();
+            }
+            return size;
+        });
+        this.measure("getHyperplanesSubsetParallel", corpusSize, numberHyperplanes, numberTables, 1, () -> {
+            long size = 0;
+            for(List<HashFunction> table : hyperplanes) {
+                size += main.getHyperplanesSubset(table, files, threads).size();
+            }
+            return size;
+        });
+
+        List<LshTable> tables = new ArrayList<>();
+        for(List<HashFunction> table : hyperplanes) {
+            tables.add(new LshTable(table, main.getHyperplanesSubset(table, files, threads)));
+        }
+        int[] position = new int[1];
+        this.measure("part2", corpusSize, numberHyperplanes, numberTables, 1, () -> {
+            String query = queries.get(Benchmark.next(position, queries.size())).getAbsolutePath();
+            StringBuilder resultsLog = new StringBuilder();
+            for(LshTable table : tables) {
+                main.part2(query, table.buckets, table.hyperplanes, resultsLog);
+            }
+            return resultsLog.length();
+        });
+        this.measure("batchQuery", corpusSize, numberHyperplanes, numberTables, queries.size(), () -> {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                return main.runBatch(queries, tables, executor).size();
+            } finally {
+                executor.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Measures a benchmark and prints its CSV line
+     * @param name The name of the benchmark
+     * @param corpusSize The corpus size parameter
+     * @param numberHyperplanes The hyperplanes parameter, 0 if not relevant
+     * @param numberTables The tables parameter, 0 if not relevant
+     * @param operationsPerInvocation The number of operations done by one invocation
+     * @param invocation The benchmarked code
+     * @throws Exception If the benchmarked code failed
+     */
+    private void measure(String name, int corpusSize, int numberHyperplanes, int numberTables,
+                         int operationsPerInvocation, Invocation invocation) throws Exception {
+        if(!name.contains(this.filter)) {
+            return;
+        }
+        System.err.println("[INFO] Benchmark " + name + " corpus=" + corpusSize + " hyperplanes=" + numberHyperplanes
+                + " tables=" + numberTables);
+        for(int i = 0; i < this.warmupIterations; i++) {
+            this.iteration(invocation, operationsPerInvocation);
+        }
+
+        double[] results = new double[this.measurementIterations];
+        double mean = 0;
+        for(int i = 0; i < results.length; i++) {
+            results[i] = this.iteration(invocation, operationsPerInvocation);
+            mean += results[i] / results.length;
+        }
+        double variance = 0;
+        for(double result : results) {
+            variance += (result - mean) * (result - mean) / Math.max(1, results.length - 1);
+        }
+        System.out.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.1f,%.1f", name, corpusSize,
+                numberHyperplanes, numberTables, mean, Math.sqrt(variance), 1e9 / mean));
+    }
+
+    /**
+     * Runs a benchmark for at least one iteration duration
+     * @param invocation The benchmarked code
+     * @param operationsPerInvocation The number of operations done by one invocation
+     * @return The average time of one operation, in ns
+     * @throws Exception If the benchmarked code failed
+     */
+    private double iteration(Invocation invocation, int operationsPerInvocation) throws Exception {
+        long result = 0;
+        long invocations = 0;
+        long startTime = System.nanoTime();
+        long elapsed;
+        do {
+            result += invocation.invoke();
+            invocations++;
+            elapsed = System.nanoTime() - startTime;
+        } while(elapsed < this.iterationNanos);
+        sink += result;
+        return (double) elapsed / (invocations * operationsPerInvocation);
+    }
+
+    /**
+     * Get the next position in a round robin over a list
+     * @param position The current position, updated
+     * @param size The size of the list
+     * @return The position to use
+     */
+    private static int next(int[] position, int size) {
+        position[0] = (position[0] + 1) % size;
+        return position[0];
+    }
+
+    private static int[] parseInts(String values) {
+        String[] parts = values.split(",");
+        int[] ints = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ints;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                Benchmark.delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,105 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An oversized bucket split in smaller buckets by extra hyperplanes.
+ * A child bucket still too big is split again with other hyperplanes, giving a tree of buckets
+ * whose depth adapts to the skew of the emails.
+ */
+class BucketSplit {
+
+    final List<HashFunction> hyperplanes;
+    final SignatureBuckets children;
+    /** The children split again, by signature on the extra hyperplanes */
+    final Map<Long, BucketSplit> splits;
+
+    /**
+     * @param hyperplanes The extra hyperplanes splitting the bucket
+     * @param children The emails of the bucket, by signature on the extra hyperplanes
+     * @param splits The children split again
+     */
+    BucketSplit(List<HashFunction> hyperplanes, SignatureBuckets children, Map<Long, BucketSplit> splits) {
+        this.hyperplanes = hyperplanes;
+        this.children = children;
+        this.splits = Collections.unmodifiableMap(splits);
+    }
+
+    /**
+     * Get the leaf bucket of a query. When the leaf of the query is empty, the nearest non empty child is used,
+     * so a query always gets candidates while never getting more than a leaf.
+     * @param wordHashes The word hashes of the query email given by ProjectionEngine.wordHashes, sorted in place
+     * @return The ids of the emails of the leaf bucket, null if the split has no email left
+     */
+    int[] get(int[] wordHashes) {
+        long signature = ProjectionEngine.signature(this.hyperplanes, wordHashes, wordHashes.length);
+        if(this.children.get(signature) == null) {
+            signature = this.nearestChild(signature);
+        }
+        BucketSplit split = this.splits.get(signature);
+        return split != null ? split.get(wordHashes) : this.children.get(signature);
+    }
+
+    /**
+     * Adds an email to its leaf bucket
+     * @param wordHashes The word hashes of the email given by ProjectionEngine.wordHashes, sorted in place
+     * @param emailId The id of the email
+     */
+    void add(int[] wordHashes, int emailId) {
+        long signature = ProjectionEngine.signature(this.hyperplanes, wordHashes, wordHashes.length);
+        this.children.add(signature, emailId);
+        BucketSplit split = this.splits.get(signature);
+        if(split != null) {
+            split.add(wordHashes, emailId);
+        }
+    }
+
+    /**
+     * Removes an email from every leaf bucket
+     * @param emailId The id of the email
+     */
+    void remove(int emailId) {
+        for(long signature : this.children.signatures()) {
+            if(this.children.remove(signature, emailId)) {
+                BucketSplit split = this.splits.get(signature);
+                if(split != null) {
+                    split.remove(emailId);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of leaf buckets of the tree
+     */
+    int numberLeaves() {
+        int leaves = this.children.size() - this.splits.size();
+        for(BucketSplit split : this.splits.values()) {
+            leaves += split.numberLeaves();
+        }
+        return leaves;
+    }
+
+    /**
+     * Finds the non empty child closest in Hamming distance to a signature, lowest signature first on ties
+     * @param signature The signature
+     * @return The signature of the child, the given signature if every child is empty
+     */
+    private long nearestChild(long signature) {
+        long nearest = signature;
+        int distance = Integer.MAX_VALUE;
+        for(long child : this.children.signatures()) {
+            int childDistance = Long.bitCount(child ^ signature);
+            if(childDistance < distance || (childDistance == distance && child < nearest)) {
+                nearest = child;
+                distance = childDistance;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,150 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every email of the datasets an int id, in order of registration starting from 0, and keeps its label.
+ * Ids are never reused : a removed email keeps its path, and gets a new id if it is added again.
+ * Near-duplicate emails can be collapsed into a representative, which then stands for its whole group.
+ */
+class DocumentTable {
+
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final BitSet spams = new BitSet();
+    /** The duplicates collapsed into every representative, and the representative of every duplicate */
+    private final Map<Integer, List<Integer>> duplicates = new HashMap<>();
+    private final Map<Integer, Integer> representatives = new HashMap<>();
+
+    /**
+     * Get the id of an email, registering it if it was never seen before
+     * @param path The absolute path of the email
+     * @param spam The label of the email, true for a spam
+     * @return The id of the email
+     */
+    synchronized int add(String path, boolean spam) {
+        Integer id = this.ids.get(path);
+        if(id == null) {
+            id = this.paths.size();
+            this.paths.add(path);
+            this.ids.put(path, id);
+        }
+        this.spams.set(id, spam);
+        return id;
+    }
+
+    /**
+     * Get the id of a registered email
+     * @param path The absolute path of the email
+     * @return The id of the email, null if it is not registered
+     */
+    synchronized Integer getId(String path) {
+        return this.ids.get(path);
+    }
+
+    /**
+     * Unregisters an email
+     * @param path The absolute path of the email
+     * @return The id the email had, null if it was not registered
+     */
+    synchronized Integer remove(String path) {
+        Integer id = this.ids.remove(path);
+        Integer representative = id == null ? null : this.representatives.remove(id);
+        if(representative != null) {
+            this.duplicates.get(representative).remove(id);
+        }
+        return id;
+    }
+
+    /**
+     * Collapses a duplicate into its representative
+     * @param duplicate The id of the duplicate email
+     * @param representative The id of the representative email, not a duplicate itself
+     */
+    synchronized void collapse(int duplicate, int representative) {
+        this.representatives.put(duplicate, representative);
+        this.duplicates.computeIfAbsent(representative, k -> new ArrayList<>()).add(duplicate);
+    }
+
+    /**
+     * Removes the group of a representative, its duplicates standing for themselves again
+     * @param representative The id of the representative
+     * @return The ids of the duplicates, in order of collapse
+     */
+    synchronized List<Integer> expand(int representative) {
+        List<Integer> group = this.duplicates.remove(representative);
+        if(group == null) {
+            return new ArrayList<>();
+        }
+        for(int duplicate : group) {
+            this.representatives.remove(duplicate);
+        }
+        return group;
+    }
+
+    /**
+     * @param id The id of an email
+     * @return The id of its representative, the id itself if the email was not collapsed
+     */
+    synchronized int getRepresentative(int id) {
+        return this.representatives.getOrDefault(id, id);
+    }
+
+    /**
+     * @param id The id of an email
+     * @return True if the email was collapsed into a representative
+     */
+    synchronized boolean isDuplicate(int id) {
+        return this.representatives.containsKey(id);
+    }
+
+    /**
+     * @param id The id of an email
+     * @return The number of emails it stands for : itself and its duplicates
+     */
+    synchronized int getMultiplicity(int id) {
+        List<Integer> group = this.duplicates.get(id);
+        return group == null ? 1 : group.size() + 1;
+    }
+
+    /**
+     * @param id The id of an email
+     * @return The number of spams among the emails it stands for
+     */
+    synchronized int getSpamCount(int id) {
+        int spamCount = this.spams.get(id) ? 1 : 0;
+        for(int duplicate : this.duplicates.getOrDefault(id, Collections.emptyList())) {
+            if(this.spams.get(duplicate))
+                spamCount++;
+        }
+        return spamCount;
+    }
+
+    /**
+     * @param id The id of an email
+     * @return The absolute path of the email
+     */
+    synchronized String getPath(int id) {
+        return this.paths.get(id);
+    }
+
+    /**
+     * @param id The id of an email
+     * @return True if the email is labelled as spam
+     */
+    synchronized boolean isSpam(int id) {
+        return this.spams.get(id);
+    }
+
+    /**
+     * @return The number of ids given, including the ones of removed emails
+     */
+    synchronized int size() {
+        return this.paths.size();
+    }
+}
@@ -0,0 +1,143 @@
+package Main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a drop directory and keeps a live index up to date with it :
+ * new or modified emails are indexed as they arrive and deleted ones are removed.
+ * The index is also compacted periodically.
+ */
+class DropDirectoryWatcher implements Closeable {
+
+    private final LiveIndex index;
+    private final Path directory;
+    private final long compactionPeriod;
+    private final TimeUnit unit;
+
+    private WatchService watchService;
+    private Thread watchingThread;
+    private ScheduledExecutorService compactionExecutor;
+
+    /**
+     * @param index The live index to update
+     * @param directory The drop directory
+     * @param compactionPeriod The time between two compactions
+     * @param unit The unit of the compaction period
+     */
+    DropDirectoryWatcher(LiveIndex index, File directory, long compactionPeriod, TimeUnit unit) {
+        this.index = index;
+        this.directory = directory.toPath().toAbsolutePath();
+        this.compactionPeriod = compactionPeriod;
+        this.unit = unit;
+    }
+
+    /**
+     * Indexes the emails already in the drop directory, then starts watching it
+     * @throws IOException If the directory could not be watched
+     */
+    void start() throws IOException {
+        java.nio.file.Files.createDirectories(this.directory);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.ingestAll();
+
+        this.watchingThread = new Thread(this::watch, "drop-directory-watcher");
+        this.watchingThread.setDaemon(true);
+        this.watchingThread.start();
+
+        this.compactionExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.compactionExecutor.scheduleWithFixedDelay(this.index::compact, this.compactionPeriod,
+                this.compactionPeriod, this.unit);
+    }
+
+    /**
+     * Handles the events of the drop directory until the watcher is closed
+     */
+    private void watch() {
+        try {
+            while(true) {
+                WatchKey key = this.watchService.take();
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        this.ingestAll();
+                        continue;
+                    }
+
+                    File email = this.directory.resolve((Path) event.context()).toFile();
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        try {
+                            this.index.remove(email.getAbsolutePath());
+                        } catch(RuntimeException e) {
+                            // The watcher must survive one bad email
+                            e.printStackTrace();
+                        }
+                    } else {
+                        this.ingest(email);
+                    }
+                }
+                if(!key.reset()) {
+                    System.err.println("[INFO] Drop directory " + this.directory + " is no longer accessible");
+                    return;
+                }
+            }
+        } catch(InterruptedException | ClosedWatchServiceException e) {
+            // Watcher closed
+        }
+    }
+
+    /**
+     * Indexes every email of the drop directory
+     */
+    private void ingestAll() {
+        File[] emails = this.directory.toFile().listFiles();
+        if(emails != null) {
+            for(File email : emails) {
+                this.ingest(email);
+            }
+        }
+    }
+
+    /**
+     * Indexes a single email of the drop directory
+     * @param email The email
+     */
+    private void ingest(File email) {
+        if(!email.isFile()) {
+            return;
+        }
+        try {
+            this.index.add(email);
+        } catch(IOException | RuntimeException e) {
+            // The watcher must survive one bad email
+            System.err.println("[INFO] Could not index " + email);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The live index kept up to date with the drop directory, to be queried
+     */
+    LiveIndex getIndex() {
+        return this.index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(this.compactionExecutor != null) {
+            this.compactionExecutor.shutdown();
+        }
+        if(this.watchService != null) {
+            this.watchService.close();
+        }
+        if(this.watchingThread != null) {
+            this.watchingThread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package Main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Results of part 3 : the exact search, then the error, recall and timing of every hyperplanes configuration
+ * against it. Displayed as a table and written as JSON.
+ */
+class EvaluationReport {
+
+    /**
+     * Results of one configuration
+     */
+    static class Configuration {
+        final int numberHyperplanes;
+        /** The maximal number of neighbouring buckets visited, 0 if multi-probe was not used */
+        final int probeBudget;
+        final double totalDistance;
+        /** Mean excess of the approximate distance of a query over its exact distance, in radians */
+        final double meanDistanceError;
+        final double recall;
+        final long elapsedNanos;
+        final double probesPerQuery;
+
+        Configuration(int numberHyperplanes, int probeBudget, double totalDistance, double meanDistanceError, double recall,
+                      long elapsedNanos, double probesPerQuery) {
+            this.numberHyperplanes = numberHyperplanes;
+            this.probeBudget = probeBudget;
+            this.totalDistance = totalDistance;
+            this.meanDistanceError = meanDistanceError;
+            this.recall = recall;
+            this.elapsedNanos = elapsedNanos;
+            this.probesPerQuery = probesPerQuery;
+        }
+    }
+
+    private final int numberQueries;
+    private final double exactTotalDistance;
+    private final long exactElapsedNanos;
+    private long indexElapsedNanos = 0;
+    private final List<Configuration> configurations = new ArrayList<>();
+
+    /**
+     * @param numberQueries The number of queries
+     * @param exactTotalDistance The sum of the exact distances of the queries
+     * @param exactElapsedNanos The time spent on the exact search
+     */
+    EvaluationReport(int numberQueries, double exactTotalDistance, long exactElapsedNanos) {
+        this.numberQueries = numberQueries;
+        this.exactTotalDistance = exactTotalDistance;
+        this.exactElapsedNanos = exactElapsedNanos;
+    }
+
+    /**
+     * @param indexElapsedNanos The time spent loading or building the index shared by all the configurations
+     */
+    void setIndexElapsedNanos(long indexElapsedNanos) {
+        this.indexElapsedNanos = indexElapsedNanos;
+    }
+
+    /**
+     * Adds the results of a configuration
+     * @param configuration The results
+     */
+    void add(Configuration configuration) {
+        this.configurations.add(configuration);
+    }
+
+    /**
+     * @return The results of every configuration, in the order they were added
+     */
+    List<Configuration> getConfigurations() {
+        return this.configurations;
+    }
+
+    /**
+     * Displays the report as a table
+     */
+    void display() {
+        System.err.println("[INFO] Evaluation of " + this.numberQueries + " queries : exact search in "
+                + (this.exactElapsedNanos / 1000000) + " ms, total exact distance " + this.exactTotalDistance
+                + ", index in " + (this.indexElapsedNanos / 1000000) + " ms");
+        System.err.println(String.format("%11s %6s %10s %14s %10s %10s %12s %8s",
+                "hyperplanes", "probes", "recall", "total distance", "mean error", "time ms", "queries/s", "probes/q"));
+        for(Configuration configuration : this.configurations) {
+            System.err.println(String.format("%11d %6d %10.4f %14.4f %10.6f %10d %12.1f %8.2f",
+                    configuration.numberHyperplanes, configuration.probeBudget, configuration.recall,
+                    configuration.totalDistance, configuration.meanDistanceError, configuration.elapsedNanos / 1000000,
+                    this.getThroughput(configuration), configuration.probesPerQuery));
+        }
+    }
+
+    /**
+     * Writes the report as JSON
+     * @param file The file to write
+     * @throws IOException If the file could not be written
+     */
+    void write(File file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"queries\": ").append(this.numberQueries)
+                .append(",\n  \"exact\": {\"totalDistance\": ").append(this.exactTotalDistance)
+                .append(", \"elapsedNs\": ").append(this.exactElapsedNanos).append("}")
+                .append(",\n  \"indexElapsedNs\": ").append(this.indexElapsedNanos)
+                .append(",\n  \"configurations\": [");
+        String separator = "\n";
+        for(Configuration configuration : this.configurations) {
+            json.append(separator).append("    {\"hyperplanes\": ").append(configuration.numberHyperplanes)
+                    .append(", \"probeBudget\": ").append(configuration.probeBudget)
+                    .append(", \"recall\": ").append(configuration.recall)
+                    .append(", \"totalDistance\": ").append(configuration.totalDistance)
+                    .append(", \"meanDistanceError\": ").append(configuration.meanDistanceError)
+                    .append(", \"elapsedNs\": ").append(configuration.elapsedNanos)
+                    .append(", \"queriesPerSecond\": ").append(this.getThroughput(configuration))
+                    .append(", \"probesPerQuery\": ").append(configuration.probesPerQuery).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+    }
+
+    private double getThroughput(Configuration configuration) {
+        return configuration.elapsedNanos == 0 ? 0 : this.numberQueries / (configuration.elapsedNanos / 1e9);
+    }
+}
@@ -0,0 +1,220 @@
+package Main;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Alternative signature engine : the words of an email are hashed once into a fixed width feature vector
+ * (the feature-hashing trick), then projected on the hyperplanes of every table by a dense matrix-vector product.
+ *
+ * Word i of an email adds +1 or -1 to one of DIMENSIONS features, both given by a murmur3 mix of its hash.
+ * Hyperplane k of a table is the row of DIMENSIONS weights between -128 and 127 drawn from its murmur3 function,
+ * so tables stay described by their List of HashFunction. All the arithmetic is on ints, so the signatures are
+ * exact and the same whatever the kernel computing the products : the Vector API kernel (VectorApiKernel, in
+ * src/simd, compiled and run with --add-modules jdk.incubator.vector) when it is available, a scalar loop otherwise.
+ * The signatures are not the ones of ProjectionEngine : both engines must not be mixed in one index.
+ * The matrices of all the tables of an index are stacked, so an email is projected on every table by one product.
+ * They are drawn on first use and kept in a cache bounded by MAX_CACHED_WEIGHTS.
+ */
+class FeatureHashing {
+
+    /** Number of features, a power of two */
+    final static int DIMENSIONS = 1024;
+    /** Number of weights kept in the matrices cache, 64 MB : 256 tables of 64 hyperplanes */
+    private final static long MAX_CACHED_WEIGHTS = 1L << 24;
+
+    /**
+     * Multiplies the hyperplanes of a table by a feature vector
+     */
+    interface Kernel {
+        /**
+         * @param matrix The weights of the hyperplanes, row after row, the rows of several tables following each other
+         * @param rows The number of hyperplanes, summed over the tables
+         * @param features The feature vector, DIMENSIONS wide
+         * @param projections Receives the projection of the features on every hyperplane
+         */
+        void project(int[] matrix, int rows, int[] features, int[] projections);
+    }
+
+    /**
+     * The kernel used when the Vector API is not available
+     */
+    static class ScalarKernel implements Kernel {
+        @Override
+        public void project(int[] matrix, int rows, int[] features, int[] projections) {
+            for(int row = 0; row < rows; row++) {
+                int offset = row * features.length;
+                int projection = 0;
+                for(int j = 0; j < features.length; j++) {
+                    projection += matrix[offset + j] * features[j];
+                }
+                projections[row] = projection;
+            }
+        }
+    }
+
+    private final static Kernel kernel = FeatureHashing.loadKernel();
+    /** The stacked weights of the hyperplanes of some tables, by list of tables */
+    private final static Cache<List<List<HashFunction>>, int[]> matrices = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_WEIGHTS).weigher((List<List<HashFunction>> tables, int[] matrix) -> matrix.length)
+            .build();
+
+    private FeatureHashing() {}
+
+    /**
+     * @return The name of the kernel computing the projections
+     */
+    static String getKernelName() {
+        return kernel.getClass().getSimpleName();
+    }
+
+    /**
+     * Get the signature of an email, bit i being set when the email is under hyperplane i
+     * @param hyperplanes The hyperplanes, at most 64
+     * @param email The content of the email
+     * @return The signature of the email
+     */
+    static long signature(List<HashFunction> hyperplanes, String email) {
+        int[] indexes = ProjectionEngine.wordHashes(email);
+        return FeatureHashing.signature(hyperplanes, FeatureHashing.features(indexes, indexes.length), null);
+    }
+
+    /**
+     * Get the signature of an email and its projection on every hyperplane
+     * @param hyperplanes The hyperplanes, at most 64
+     * @param email The content of the email
+     * @param projections Receives the projection on every hyperplane, positive or zero when above and negative
+     *                    when under
+     * @return The signature of the email, bit i being set when the email is under hyperplane i
+     */
+    static long signature(List<HashFunction> hyperplanes, String email, double[] projections) {
+        int[] indexes = ProjectionEngine.wordHashes(email);
+        return FeatureHashing.signature(hyperplanes, FeatureHashing.features(indexes, indexes.length), projections);
+    }
+
+    /**
+     * Get the signatures of the word hashes of an email for several tables, hashing the words once
+     * @param tables The hyperplanes of every table, at most 64 per table
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @return The signature of the email in every table
+     */
+    static long[] signatures(List<List<HashFunction>> tables, int[] indexes, int length) {
+        int[] features = FeatureHashing.features(indexes, length);
+        int rows = 0;
+        for(List<HashFunction> hyperplanes : tables) {
+            if(hyperplanes.size() > 64) {
+                throw new IllegalArgumentException("Signatures are limited to 64 hyperplanes");
+            }
+            rows += hyperplanes.size();
+        }
+        int[] products = new int[rows];
+        kernel.project(FeatureHashing.matrix(tables), rows, features, products);
+
+        long[] signatures = new long[tables.size()];
+        int row = 0;
+        for(int t = 0; t < signatures.length; t++) {
+            for(int h = 0; h < tables.get(t).size(); h++, row++) {
+                if(products[row] < 0) {
+                    signatures[t] |= 1L << h;
+                }
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Hashes the words of an email into a feature vector
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @return The feature vector, DIMENSIONS wide
+     */
+    static int[] features(int[] indexes, int length) {
+        int[] features = new int[DIMENSIONS];
+        for(int i = 0; i < length; i++) {
+            int mix = FeatureHashing.mix(indexes[i]);
+            features[mix & (DIMENSIONS - 1)] += mix < 0 ? -1 : 1;
+        }
+        return features;
+    }
+
+    private static long signature(List<HashFunction> hyperplanes, int[] features, double[] projections) {
+        if(hyperplanes.size() > 64) {
+            throw new IllegalArgumentException("Signatures are limited to 64 hyperplanes");
+        }
+        int[] products = new int[hyperplanes.size()];
+        kernel.project(FeatureHashing.matrix(Collections.singletonList(hyperplanes)), products.length, features,
+                products);
+
+        long signature = 0;
+        for(int h = 0; h < products.length; h++) {
+            if(products[h] < 0) {
+                signature |= 1L << h;
+            }
+            if(projections != null) {
+                projections[h] = products[h];
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Get the weights of the hyperplanes of some tables, drawn on first use
+     * @param tables The hyperplanes of every table
+     * @return The weights, row after row, the rows of every table following the ones of the previous table
+     */
+    private static int[] matrix(List<List<HashFunction>> tables) {
+        try {
+            return matrices.get(tables, () -> {
+                int rows = 0;
+                for(List<HashFunction> hyperplanes : tables) {
+                    rows += hyperplanes.size();
+                }
+                int[] matrix = new int[rows * DIMENSIONS];
+                int row = 0;
+                for(List<HashFunction> hyperplanes : tables) {
+                    for(HashFunction hyperplane : hyperplanes) {
+                        for(int j = 0; j < DIMENSIONS; j++) {
+                            matrix[row * DIMENSIONS + j] = (byte) hyperplane.hashInt(j).asInt();
+                        }
+                        row++;
+                    }
+                }
+                return matrix;
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * The murmur3 finalizer, spreading a word hash over all 32 bits
+     * @param hash A word hash
+     * @return The mixed hash
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * @return The Vector API kernel if it was compiled and the jdk.incubator.vector module is present,
+     *         the scalar kernel otherwise
+     */
+    private static Kernel loadKernel() {
+        try {
+            return (Kernel) Class.forName("Main.VectorApiKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarKernel();
+        }
+    }
+}
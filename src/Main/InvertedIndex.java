@@ -0,0 +1,136 @@
+package Main;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exact nearest neighbour search over a list of email vectors, using a term to postings inverted index.
+ *
+ * Dot products are only accumulated for the emails sharing at least one term with the query. Every other email
+ * is exactly at PI/2 from the query, so only the first of them needs to be considered. The result is the same
+ * email and distance as Main.computeMinDistance over the whole list.
+ */
+class InvertedIndex {
+
+    /**
+     * The nearest email found by a query
+     */
+    static class Neighbour {
+        /** Position of the email in the indexed list, Integer.MAX_VALUE if no email could be compared */
+        final int index;
+        final double distance;
+
+        Neighbour(int index, double distance) {
+            this.index = index;
+            this.distance = distance;
+        }
+    }
+
+    private final int numberEmails;
+    private final double[] norms;
+    /** postingEmails[term] and postingCounts[term] : the emails containing the term, in increasing order */
+    private final int[][] postingEmails;
+    private final int[][] postingCounts;
+    /** First email with a non zero norm, the one at PI/2 chosen when no email shares a term with the query */
+    private final int firstComparableEmail;
+
+    /**
+     * Builds the inverted index of a list of vectors
+     * @param vectors The vectors, their positions in the list are the returned indexes
+     * @param numberTerms The number of terms of the dictionary the vectors were encoded with
+     */
+    InvertedIndex(List<SparseVector> vectors, int numberTerms) {
+        this.numberEmails = vectors.size();
+        this.norms = new double[this.numberEmails];
+
+        int[] postingSizes = new int[numberTerms];
+        for(SparseVector vector : vectors) {
+            for(int term : vector.termIds) {
+                postingSizes[term]++;
+            }
+        }
+        this.postingEmails = new int[numberTerms][];
+        this.postingCounts = new int[numberTerms][];
+        for(int term = 0; term < numberTerms; term++) {
+            this.postingEmails[term] = new int[postingSizes[term]];
+            this.postingCounts[term] = new int[postingSizes[term]];
+        }
+
+        Arrays.fill(postingSizes, 0);
+        int firstComparable = Integer.MAX_VALUE;
+        for(int email = 0; email < this.numberEmails; email++) {
+            SparseVector vector = vectors.get(email);
+            this.norms[email] = vector.norm;
+            if(vector.norm > 0 && firstComparable == Integer.MAX_VALUE) {
+                firstComparable = email;
+            }
+            for(int i = 0; i < vector.termIds.length; i++) {
+                int term = vector.termIds[i];
+                this.postingEmails[term][postingSizes[term]] = email;
+                this.postingCounts[term][postingSizes[term]] = vector.counts[i];
+                postingSizes[term]++;
+            }
+        }
+        this.firstComparableEmail = firstComparable;
+    }
+
+    /**
+     * Finds the nearest email to a query
+     * @param query The query vector
+     * @return The nearest email and its distance
+     */
+    Neighbour nearest(SparseVector query) {
+        int[] dots = new int[this.numberEmails];
+        boolean[] touched = new boolean[this.numberEmails];
+        int[] touchedEmails = new int[16];
+        int numberTouched = 0;
+
+        for(int i = 0; i < query.termIds.length; i++) {
+            int term = query.termIds[i];
+            if(term < 0 || term >= this.postingEmails.length) {
+                continue;
+            }
+            int count = query.counts[i];
+            int[] emails = this.postingEmails[term];
+            int[] counts = this.postingCounts[term];
+            for(int j = 0; j < emails.length; j++) {
+                int email = emails[j];
+                if(!touched[email]) {
+                    touched[email] = true;
+                    if(numberTouched == touchedEmails.length) {
+                        touchedEmails = Arrays.copyOf(touchedEmails, numberTouched * 2);
+                    }
+                    touchedEmails[numberTouched++] = email;
+                }
+                dots[email] += count * counts[j];
+            }
+        }
+
+        double cosine = Double.NEGATIVE_INFINITY;
+        int minIndex = Integer.MAX_VALUE;
+        for(int i = 0; i < numberTouched; i++) {
+            int email = touchedEmails[i];
+            double tmpCosine = dots[email] / (query.norm * this.norms[email]);
+            tmpCosine = tmpCosine > 1 ? 1 : tmpCosine;
+            if(tmpCosine > cosine || (tmpCosine == cosine && email < minIndex)) {
+                cosine = tmpCosine;
+                minIndex = email;
+            }
+        }
+
+        // The first email sharing no term with the query is at PI/2 (or NaN if the query norm is 0)
+        for(int email = this.firstComparableEmail; email < this.numberEmails; email++) {
+            if(touched[email] || this.norms[email] == 0) {
+                continue;
+            }
+            double tmpCosine = 0 / (query.norm * this.norms[email]);
+            if(tmpCosine > cosine || (tmpCosine == cosine && email < minIndex)) {
+                cosine = tmpCosine;
+                minIndex = email;
+            }
+            break;
+        }
+        double distance = minIndex == Integer.MAX_VALUE ? Double.MAX_VALUE : SparseVector.toDistance(cosine);
+        return new Neighbour(minIndex, distance);
+    }
+}
@@ -0,0 +1,175 @@
+package Main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Classifies a query email as spam or genuine by a vote of its k nearest emails.
+ *
+ * The k nearest candidates of a query are kept in a bounded max-heap, so scoring a candidate costs at most
+ * O(log k). The search can stop early : once quorum of the kept neighbours have the same label and are within the
+ * distance threshold, the remaining candidates of the buckets are not scored.
+ * The vote is either a majority vote, or weighted by the cosine similarity of every neighbour to the query.
+ * Ties and queries without any neighbour are tagged as genuine, as with the 1-nearest rule.
+ * A representative of collapsed near-duplicates counts as all the emails of its group, with their labels.
+ */
+class KnnClassifier {
+
+    private final DocumentTable documents;
+    private final int k;
+    private final int quorum;
+    private final double threshold;
+    private final boolean weighted;
+
+    /**
+     * A neighbour of a query
+     */
+    static class Neighbour {
+        final int emailId;
+        final double distance;
+        /** Number of the k votes held by the neighbour, more than 1 for a representative of near-duplicates */
+        int weight;
+
+        Neighbour(int emailId, double distance, int weight) {
+            this.emailId = emailId;
+            this.distance = distance;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param documents The table giving the labels of the emails
+     * @param k The number of neighbours voting
+     * @param quorum The number of same label neighbours within the threshold stopping the search, 0 never stops
+     * @param threshold The distance under which a neighbour counts towards the quorum
+     * @param weighted True to weight the votes by cosine similarity, false for a majority vote
+     */
+    KnnClassifier(DocumentTable documents, int k, int quorum, double threshold, boolean weighted) {
+        if(k < 1) {
+            throw new IllegalArgumentException("At least one neighbour must vote");
+        }
+        this.documents = documents;
+        this.k = k;
+        this.quorum = quorum;
+        this.threshold = threshold;
+        this.weighted = weighted;
+    }
+
+    /**
+     * @return A new search for the neighbours of one query
+     */
+    Search newSearch() {
+        return new Search();
+    }
+
+    /**
+     * The k nearest candidates of one query. Not thread-safe : use one per query.
+     */
+    class Search {
+
+        /** Farthest kept neighbour first */
+        private final PriorityQueue<Neighbour> heap =
+                new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b.distance, a.distance));
+        private int heapWeight = 0;
+        /** Votes of the kept neighbours within the threshold, by label */
+        private double closeSpams = 0;
+        private double closeGenuines = 0;
+        private int numberScored = 0;
+
+        /**
+         * Offers a scored candidate. A candidate at the same distance as the farthest kept one is not kept,
+         * so the first candidates win ties as with the 1-nearest rule.
+         * @param emailId The id of the candidate
+         * @param distance The distance of the candidate to the query
+         * @return True once the search is complete, the remaining candidates do not need to be scored
+         */
+        boolean offer(int emailId, double distance) {
+            this.numberScored++;
+            int multiplicity = documents.getMultiplicity(emailId);
+            if(this.heapWeight < k || distance < this.heap.peek().distance) {
+                Neighbour neighbour = new Neighbour(emailId, distance, multiplicity);
+                this.heap.add(neighbour);
+                this.heapWeight += multiplicity;
+                this.countCloseVotes(neighbour, 1);
+                // Drop the farthest votes beyond k
+                while(this.heapWeight - this.heap.peek().weight >= k) {
+                    Neighbour dropped = this.heap.poll();
+                    this.heapWeight -= dropped.weight;
+                    this.countCloseVotes(dropped, -1);
+                }
+                if(this.heapWeight > k) {
+                    Neighbour farthest = this.heap.peek();
+                    this.countCloseVotes(farthest, -1);
+                    farthest.weight -= this.heapWeight - k;
+                    this.heapWeight = k;
+                    this.countCloseVotes(farthest, 1);
+                }
+            }
+            return this.isComplete();
+        }
+
+        /**
+         * Adds or removes the votes of a kept neighbour to the quorum, if it is within the threshold
+         * @param neighbour The neighbour, with its current weight
+         * @param sign 1 when the neighbour is kept, -1 when it is dropped
+         */
+        private void countCloseVotes(Neighbour neighbour, int sign) {
+            if(neighbour.distance > threshold) {
+                return;
+            }
+            double spamShare = (double) documents.getSpamCount(neighbour.emailId)
+                    / documents.getMultiplicity(neighbour.emailId);
+            this.closeSpams += sign * neighbour.weight * spamShare;
+            this.closeGenuines += sign * neighbour.weight * (1 - spamShare);
+        }
+
+        /**
+         * @return True if enough neighbours of the same label were found within the threshold
+         */
+        boolean isComplete() {
+            return quorum > 0 && (this.closeSpams >= quorum || this.closeGenuines >= quorum);
+        }
+
+        /**
+         * @return The number of candidates scored so far
+         */
+        int getNumberScored() {
+            return this.numberScored;
+        }
+
+        /**
+         * @return The kept neighbours, nearest first
+         */
+        List<Neighbour> neighbours() {
+            List<Neighbour> neighbours = new ArrayList<>(this.heap);
+            neighbours.sort((a, b) -> Double.compare(a.distance, b.distance));
+            return Collections.unmodifiableList(neighbours);
+        }
+
+        /**
+         * @return True if the neighbours vote for spam
+         */
+        boolean isSpam() {
+            double spamVotes = 0;
+            double genuineVotes = 0;
+            for(Neighbour neighbour : this.heap) {
+                double vote = weighted ? Math.cos(neighbour.distance) : 1;
+                int multiplicity = documents.getMultiplicity(neighbour.emailId);
+                if(multiplicity == 1) {
+                    if(documents.isSpam(neighbour.emailId))
+                        spamVotes += vote;
+                    else
+                        genuineVotes += vote;
+                } else {
+                    // The votes of the neighbour are shared according to the labels of its group
+                    double spamShare = (double) documents.getSpamCount(neighbour.emailId) / multiplicity;
+                    spamVotes += vote * neighbour.weight * spamShare;
+                    genuineVotes += vote * neighbour.weight * (1 - spamShare);
+                }
+            }
+            return spamVotes > genuineVotes;
+        }
+    }
+}
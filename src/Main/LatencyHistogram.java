@@ -0,0 +1,96 @@
+package Main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non negative values, safe and cheap to record into from several threads.
+ *
+ * Values are counted in log-linear buckets : 32 buckets per power of two, so a percentile is known within 3 %
+ * whatever the magnitude of the values. Recording a value is a few bit operations and two atomic additions,
+ * without any allocation or lock.
+ */
+class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 5;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value
+     * @param value The value, negative values are recorded as 0
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        this.counts.incrementAndGet(LatencyHistogram.index(value));
+        this.count.increment();
+        this.sum.add(value);
+        if(value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Get a percentile of the recorded values
+     * @param percentile The percentile, between 0 and 100
+     * @return The highest value of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long percentile(double percentile) {
+        long total = this.count.sum();
+        if(total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int index = 0; index < this.counts.length(); index++) {
+            seen += this.counts.get(index);
+            if(seen >= rank) {
+                return Math.min(LatencyHistogram.highestValue(index), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    long getCount() {
+        return this.count.sum();
+    }
+
+    long getMax() {
+        return this.max.get();
+    }
+
+    double getMean() {
+        long total = this.count.sum();
+        return total == 0 ? 0 : (double) this.sum.sum() / total;
+    }
+
+    /**
+     * @param value A non negative value
+     * @return The bucket of the value : the value itself under 32, then 32 buckets per power of two
+     */
+    private static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param index A bucket
+     * @return The highest value counted in the bucket
+     */
+    private static long highestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
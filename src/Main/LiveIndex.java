@@ -0,0 +1,165 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hyperplanes tables that emails can be added to or removed from one by one, while queries are running.
+ *
+ * Adding an email reads and converts it once, stores its vector and adds its id to one bucket per table.
+ * Removing it only touches these buckets and its vector. Buckets emptied by removals and the slack left
+ * by additions are reclaimed by compact, which rebuilds the tables and swaps them atomically.
+ * Emails added here are never collapsed, but removing a representative of near-duplicates indexes its first duplicate.
+ */
+class LiveIndex {
+
+    private final Main main;
+    private final DocumentTable documents;
+    private final VectorStore vectorStore;
+    private volatile List<LshTable> tables;
+
+    /** Signature of every email added through the live index, one per table */
+    private final Map<Integer, long[]> signatures = new HashMap<>();
+
+    /**
+     * @param main The instance computing the email signatures
+     * @param documents The table giving the ids of the emails
+     * @param vectorStore The store of the email vectors
+     * @param tables The hyperplanes tables built from the datasets
+     */
+    LiveIndex(Main main, DocumentTable documents, VectorStore vectorStore, List<LshTable> tables) {
+        this.main = main;
+        this.documents = documents;
+        this.vectorStore = vectorStore;
+        this.tables = Collections.unmodifiableList(new ArrayList<>(tables));
+    }
+
+    /**
+     * @return The current tables, to be queried
+     */
+    List<LshTable> getTables() {
+        return this.tables;
+    }
+
+    /**
+     * Adds an email to the tables, replacing it if it was already indexed.
+     * An email too short to have a subject line, such as a file still being written, is only removed :
+     * it is added by a later call once complete. The email is only registered once its vector and signatures
+     * are computed, so a failure leaves no half indexed email.
+     * @param email The email
+     * @return The id of the email, -1 if it was too short to be indexed
+     * @throws IOException If the email could not be read
+     */
+    synchronized int add(File email) throws IOException {
+        String path = email.getAbsolutePath();
+        String content = Main.getEmailContent(path);
+        this.remove(path);
+        if(content.length() < 9) {
+            System.err.println("[INFO] " + path + " is not indexed yet : an email starts with its subject line");
+            return -1;
+        }
+
+        long[] emailSignatures = this.sign(content);
+        this.vectorStore.put(path, content);
+        int emailId = this.documents.add(path, Main.isSpamEmail(email));
+        this.index(emailId, content, emailSignatures);
+        return emailId;
+    }
+
+    /**
+     * Get the signature of an email in every table
+     * @param content The content of the email
+     * @return The signatures, one per table
+     */
+    private long[] sign(String content) {
+        long[] emailSignatures = new long[this.tables.size()];
+        for(int t = 0; t < emailSignatures.length; t++) {
+            emailSignatures[t] = this.main.getEmailSignature(this.tables.get(t).hyperplanes, content);
+        }
+        return emailSignatures;
+    }
+
+    /**
+     * Adds a registered email to one bucket per table
+     * @param emailId The id of the email
+     * @param content The content of the email
+     * @param emailSignatures The signatures of the email given by sign
+     */
+    private void index(int emailId, String content, long[] emailSignatures) {
+        int[] wordHashes = LshTable.wordHashes(this.tables, content);
+        for(int t = 0; t < emailSignatures.length; t++) {
+            this.tables.get(t).add(emailSignatures[t], emailId, wordHashes);
+        }
+        this.signatures.put(emailId, emailSignatures);
+    }
+
+    /**
+     * Removes an email from the tables
+     * @param path The absolute path of the email
+     * @return True if the email was indexed
+     */
+    synchronized boolean remove(String path) {
+        Integer emailId = this.documents.remove(path);
+        if(emailId == null) {
+            return false;
+        }
+        this.vectorStore.remove(path);
+
+        long[] emailSignatures = this.signatures.remove(emailId);
+        for(int t = 0; t < this.tables.size(); t++) {
+            LshTable table = this.tables.get(t);
+            if(emailSignatures != null) {
+                table.remove(emailSignatures[t], emailId);
+            } else {
+                // Email from the initial datasets, its signature was not kept
+                for(long signature : table.buckets.signatures()) {
+                    if(table.remove(signature, emailId)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        // A removed representative is replaced by the first of its near-duplicates
+        List<Integer> duplicates = this.documents.expand(emailId);
+        if(!duplicates.isEmpty()) {
+            int representative = duplicates.get(0);
+            try {
+                String content = Main.getEmailContent(this.documents.getPath(representative));
+                this.index(representative, content, this.sign(content));
+                for(int duplicate : duplicates.subList(1, duplicates.size())) {
+                    this.documents.collapse(duplicate, representative);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds every table without the slots left by removed emails and with trimmed buckets,
+     * splitting again the buckets grown oversized
+     */
+    synchronized void compact() {
+        List<LshTable> compacted = new ArrayList<>();
+        for(int t = 0; t < this.tables.size(); t++) {
+            LshTable table = this.tables.get(t);
+            long[] tableSignatures = table.buckets.signatures();
+            SignatureBuckets buckets = new SignatureBuckets(tableSignatures.length);
+            for(long signature : tableSignatures) {
+                for(int emailId : table.buckets.get(signature)) {
+                    buckets.add(signature, emailId);
+                }
+            }
+            buckets.compact();
+            compacted.add(this.main.splitOversizedBuckets(new LshTable(table.hyperplanes, buckets), t));
+        }
+        this.tables = Collections.unmodifiableList(compacted);
+    }
+}
@@ -0,0 +1,144 @@
+package Main;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays the emails of a folder (dataset 6 by default) against a running QueryServer, then reports
+ * the throughput, the latency percentiles and how the emails were classified.
+ *
+ * Every client thread sends its requests one after the other, so concurrency is the number of requests in flight.
+ * The warmup rounds let the server JIT compile its hot paths and are not measured.
+ *
+ * Usage : java Main.LoadGenerator [url=http://localhost:8438/classify] [folder=./emails/6] [concurrency=16]
+ *                                 [warmup=1] [rounds=3]
+ */
+class LoadGenerator {
+
+    private final URL url;
+    private final List<File> emails = new ArrayList<>();
+    private final List<byte[]> bodies = new ArrayList<>();
+    private final int concurrency;
+
+    private LoadGenerator(URL url, File folder, int concurrency) throws IOException {
+        this.url = url;
+        this.concurrency = Math.max(1, concurrency);
+        File[] files = folder.listFiles(File::isFile);
+        if(files == null) {
+            throw new IOException("No folder " + folder);
+        }
+        Arrays.sort(files);
+        for(File email : files) {
+            this.emails.add(email);
+            this.bodies.add(Files.readAllBytes(email.toPath()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        LoadGenerator generator = new LoadGenerator(
+                new URL(options.getOrDefault("url", "http://localhost:8438/classify")),
+                new File(options.getOrDefault("folder", "./emails/6")),
+                Integer.parseInt(options.getOrDefault("concurrency", "16")));
+        int warmupRounds = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+
+        for(int round = 0; round < warmupRounds; round++) {
+            generator.replay(new LatencyHistogram(), new SpamTally("Warmup"));
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        SpamTally tally = new SpamTally("Server");
+        long startTimer = System.nanoTime();
+        for(int round = 0; round < rounds; round++) {
+            generator.replay(latencies, tally);
+        }
+        long elapsed = System.nanoTime() - startTimer;
+
+        System.err.println("[INFO] " + latencies.getCount() + " requests with " + generator.concurrency
+                + " clients in " + (elapsed / 1000000) + " ms");
+        System.err.println("[INFO] Throughput = " + (latencies.getCount() * 1e9 / elapsed) + " requests/s");
+        System.err.println("[INFO] Latency (ms) : mean = " + (latencies.getMean() / 1e6)
+                + ", p50 = " + (latencies.percentile(50) / 1e6) + ", p99 = " + (latencies.percentile(99) / 1e6)
+                + ", max = " + (latencies.getMax() / 1e6));
+        tally.display();
+    }
+
+    /**
+     * Sends every email once, from concurrency client threads
+     * @param latencies Receives the latency of every request
+     * @param tally Receives the classification of every email
+     * @throws Exception If a request failed
+     */
+    private void replay(LatencyHistogram latencies, SpamTally tally) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(this.concurrency);
+        AtomicInteger next = new AtomicInteger();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for(int client = 0; client < this.concurrency; client++) {
+                futures.add(clients.submit(() -> {
+                    for(int i = next.getAndIncrement(); i < this.bodies.size(); i = next.getAndIncrement()) {
+                        long startTimer = System.nanoTime();
+                        String response = LoadGenerator.post(this.url, this.bodies.get(i));
+                        latencies.record(System.nanoTime() - startTimer);
+                        tally.record(Main.isSpamEmail(this.emails.get(i)), response.startsWith("spam"));
+                    }
+                    return null;
+                }));
+            }
+            for(Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Posts the content of an email to a server
+     * @param url The url of the server
+     * @param body The content of the email
+     * @return The response of the server
+     * @throws IOException If the request failed
+     */
+    static String post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try(OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        if(status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("The server answered " + status);
+        }
+        try(InputStream in = connection.getInputStream()) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package Main;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * L hyperplanes tables of K hyperplanes each, built together and queried as a unit.
+ * A query merges the candidates of all the tables, see MultiTableQueryEngine.
+ */
+class LshIndex {
+
+    private final List<LshTable> tables;
+    private final int[] seeds;
+    private final MultiTableQueryEngine engine;
+
+    /**
+     * @param tables The tables, all with the same number of hyperplanes
+     * @param seeds The seed used to construct the hyperplanes of every table
+     * @param engine The engine running the queries over the tables
+     */
+    LshIndex(List<LshTable> tables, int[] seeds, MultiTableQueryEngine engine) {
+        this.tables = Collections.unmodifiableList(tables);
+        this.seeds = seeds.clone();
+        this.engine = engine;
+    }
+
+    /**
+     * Finds the nearest candidate email of a query over all the tables
+     * @param query The query email
+     * @return The result of the query
+     * @throws Exception If some file was not to be found
+     */
+    BatchQueryRunner.QueryResult query(File query) throws Exception {
+        return this.engine.query(query, this.tables);
+    }
+
+    /**
+     * Finds the nearest candidate email of a query given by its content over all the tables
+     * @param path The path of the query, only kept in the result
+     * @param content The content of the query email
+     * @param vector The vector of the query email
+     * @return The result of the query
+     * @throws Exception If some file was not to be found
+     */
+    BatchQueryRunner.QueryResult query(String path, String content, SparseVector vector) throws Exception {
+        return this.engine.query(path, content, vector, this.tables, System.nanoTime());
+    }
+
+    List<LshTable> getTables() {
+        return this.tables;
+    }
+
+    /**
+     * @return L, the number of tables
+     */
+    int getNumberTables() {
+        return this.tables.size();
+    }
+
+    /**
+     * @return K, the number of hyperplanes of every table
+     */
+    int getNumberHyperplanes() {
+        return this.tables.isEmpty() ? 0 : this.tables.get(0).hyperplanes.size();
+    }
+
+    int[] getSeeds() {
+        return this.seeds.clone();
+    }
+
+    /**
+     * @return The estimated heap footprint of the buckets of all the tables, in bytes
+     */
+    long memoryBytes() {
+        long bytes = 0;
+        for(LshTable table : this.tables) {
+            bytes += table.buckets.memoryBytes();
+        }
+        return bytes;
+    }
+}
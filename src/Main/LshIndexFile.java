@@ -0,0 +1,214 @@
+package Main;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Binary on-disk index of the subset collection built by the hyperplanes.
+ *
+ * Layout of the file (big endian) :
+ * - header : magic, version, seed, number of hyperplanes, debug flag, then the stamp of the indexed datasets :
+ *   number of emails, total size, last modification and hash of the ordered paths (to detect a stale index)
+ * - path table : number of paths, then every path in order of its email id as a length prefixed UTF-8 string
+ *   followed by its spam label
+ * - buckets : number of buckets, then for every bucket its signature, its size and the path table indexes
+ *
+ * The file is memory-mapped when opened, so loading it costs a single sequential read. A truncated or corrupt file
+ * is reported as an IOException before any of its emails is registered, so the index can be rebuilt instead.
+ */
+class LshIndexFile {
+
+    private final static int MAGIC = 0x4C534849;
+    private final static int VERSION = 5;
+    private final static int HEADER_SIZE = 45;
+
+    private final MappedByteBuffer buffer;
+    private final int seed;
+    private final int numberHyperplanes;
+    private final boolean debug;
+    private final MappedCorpus.Stamp stamp;
+
+    private LshIndexFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a valid index file");
+        }
+        this.seed = buffer.getInt();
+        this.numberHyperplanes = buffer.getInt();
+        this.debug = buffer.get() != 0;
+        this.stamp = new MappedCorpus.Stamp(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Memory-maps an index file and reads its header
+     * @param file The index file
+     * @return The opened index
+     * @throws IOException If the file could not be read or is not an index file
+     */
+    static LshIndexFile open(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new LshIndexFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a subset collection into an index file
+     * @param file The index file, overwritten if it exists
+     * @param collection The subset collection
+     * @param documents The table giving the paths and labels of the emails
+     * @param seed The seed used to construct the hyperplanes
+     * @param numberHyperplanes The number of hyperplanes used to construct the signatures
+     * @param debug The debug option the collection was built with
+     * @param stamp The stamp of the datasets the collection was built from
+     * @throws IOException File issues
+     */
+    static void write(File file, SignatureBuckets collection, DocumentTable documents, int seed,
+                      int numberHyperplanes, boolean debug, MappedCorpus.Stamp stamp) throws IOException {
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        long[] signatures = collection.signatures();
+        // Paths in order of their ids, so a reload registers them with the ids they were built with
+        SortedSet<Integer> emailIds = new TreeSet<>();
+        for(long signature : signatures) {
+            for(int emailId : collection.get(signature)) {
+                emailIds.add(emailId);
+            }
+        }
+        Map<Integer, Integer> pathIndexes = new LinkedHashMap<>();
+        for(int emailId : emailIds) {
+            pathIndexes.put(emailId, pathIndexes.size());
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(seed);
+            out.writeInt(numberHyperplanes);
+            out.writeByte(debug ? 1 : 0);
+            out.writeInt(stamp.numberEmails);
+            out.writeLong(stamp.totalBytes);
+            out.writeLong(stamp.lastModified);
+            out.writeLong(stamp.pathsHash);
+
+            out.writeInt(pathIndexes.size());
+            for(int emailId : pathIndexes.keySet()) {
+                byte[] bytes = documents.getPath(emailId).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeByte(documents.isSpam(emailId) ? 1 : 0);
+            }
+
+            out.writeInt(signatures.length);
+            for(long signature : signatures) {
+                int[] bucket = collection.get(signature);
+                out.writeLong(signature);
+                out.writeInt(bucket.length);
+                for(int emailId : bucket) {
+                    out.writeInt(pathIndexes.get(emailId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the index was built with the given parameters
+     * @param seed The seed used to construct the hyperplanes
+     * @param numberHyperplanes The number of hyperplanes
+     * @param debug The current debug option
+     * @param stamp The stamp of the datasets as they are now
+     * @return True if the index can be used, false if it is stale
+     */
+    boolean matches(int seed, int numberHyperplanes, boolean debug, MappedCorpus.Stamp stamp) {
+        return this.seed == seed && this.numberHyperplanes == numberHyperplanes
+                && this.debug == debug && this.stamp.sameAs(stamp);
+    }
+
+    /**
+     * Reads the whole subset collection stored in the index
+     * @param documents The table giving the ids of the emails, the paths of the index are registered into it
+     * @return The subset collection
+     * @throws IOException If the file is truncated or corrupt, no path being registered then
+     */
+    SignatureBuckets readSubsets(DocumentTable documents) throws IOException {
+        ByteBuffer data = this.buffer.duplicate();
+        data.position(HEADER_SIZE);
+        try {
+            String[] paths = new String[LshIndexFile.readLength(data, 5)];
+            boolean[] spams = new boolean[paths.length];
+            for(int i = 0; i < paths.length; i++) {
+                byte[] bytes = new byte[LshIndexFile.readLength(data, 1)];
+                data.get(bytes);
+                paths[i] = new String(bytes, StandardCharsets.UTF_8);
+                spams[i] = data.get() != 0;
+            }
+
+            // Every bucket is checked before the first path is registered
+            int bucketsStart = data.position();
+            int numberBuckets = LshIndexFile.readLength(data, 12);
+            for(int i = 0; i < numberBuckets; i++) {
+                data.getLong();
+                int size = LshIndexFile.readLength(data, 4);
+                for(int j = 0; j < size; j++) {
+                    int pathIndex = data.getInt();
+                    if(pathIndex < 0 || pathIndex >= paths.length) {
+                        throw new IOException("Corrupt index file : no path " + pathIndex);
+                    }
+                }
+            }
+
+            int[] emailIds = new int[paths.length];
+            for(int i = 0; i < paths.length; i++) {
+                emailIds[i] = documents.add(paths[i], spams[i]);
+            }
+            data.position(bucketsStart + 4);
+            SignatureBuckets collection = new SignatureBuckets(numberBuckets);
+            for(int i = 0; i < numberBuckets; i++) {
+                long signature = data.getLong();
+                int size = data.getInt();
+                for(int j = 0; j < size; j++) {
+                    collection.add(signature, emailIds[data.getInt()]);
+                }
+            }
+            collection.compact();
+            return collection;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated index file", e);
+        }
+    }
+
+    /**
+     * Reads a number of entries, checking the rest of the file can hold them
+     * @param data The file, positioned on the number
+     * @param minEntryBytes The minimal size of an entry
+     * @return The number of entries
+     * @throws IOException If the number is negative or too large for the rest of the file
+     */
+    private static int readLength(ByteBuffer data, int minEntryBytes) throws IOException {
+        int length = data.getInt();
+        if(length < 0 || (long) length * minEntryBytes > data.remaining()) {
+            throw new IOException("Corrupt index file : " + length + " entries left at " + data.position());
+        }
+        return length;
+    }
+
+    int getSeed() {
+        return this.seed;
+    }
+
+    int getNumberHyperplanes() {
+        return this.numberHyperplanes;
+    }
+}
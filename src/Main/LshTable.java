@@ -0,0 +1,90 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One hyperplanes table : the hyperplanes and the subset collection of emails they generated.
+ * Oversized buckets can be split by extra hyperplanes, lookups then give the leaf bucket of the query.
+ */
+class LshTable {
+
+    final List<HashFunction> hyperplanes;
+    final SignatureBuckets buckets;
+    /** The oversized buckets split by extra hyperplanes, by signature */
+    final Map<Long, BucketSplit> splits;
+
+    LshTable(List<HashFunction> hyperplanes, SignatureBuckets buckets) {
+        this(hyperplanes, buckets, Collections.emptyMap());
+    }
+
+    /**
+     * @param hyperplanes The hyperplanes of the table
+     * @param buckets The subset collection of emails
+     * @param splits The oversized buckets split by extra hyperplanes, by signature
+     */
+    LshTable(List<HashFunction> hyperplanes, SignatureBuckets buckets, Map<Long, BucketSplit> splits) {
+        this.hyperplanes = hyperplanes;
+        this.buckets = buckets;
+        this.splits = Collections.unmodifiableMap(splits);
+    }
+
+    /**
+     * Get the word hashes an email needs to walk the split buckets of some tables, so it is tokenized once
+     * for all of their levels
+     * @param tables The hyperplanes tables
+     * @param emailContent The content of the email
+     * @return The word hashes of the email, null if no bucket of the tables is split
+     */
+    static int[] wordHashes(List<LshTable> tables, String emailContent) {
+        for(LshTable table : tables) {
+            if(!table.splits.isEmpty()) {
+                return ProjectionEngine.wordHashes(emailContent);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the emails of a bucket, or of the leaf bucket of the query if the bucket was split
+     * @param signature The signature of the bucket
+     * @param wordHashes The word hashes of the query email given by wordHashes
+     * @return The ids of the emails, null if the bucket is empty. Must not be modified.
+     */
+    int[] get(long signature, int[] wordHashes) {
+        BucketSplit split = this.splits.get(signature);
+        return split != null ? split.get(wordHashes) : this.buckets.get(signature);
+    }
+
+    /**
+     * Adds an email to its bucket, and to its leaf bucket if the bucket was split
+     * @param signature The signature of the email
+     * @param emailId The id of the email
+     * @param wordHashes The word hashes of the email given by wordHashes
+     */
+    void add(long signature, int emailId, int[] wordHashes) {
+        this.buckets.add(signature, emailId);
+        BucketSplit split = this.splits.get(signature);
+        if(split != null) {
+            split.add(wordHashes, emailId);
+        }
+    }
+
+    /**
+     * Removes an email from its bucket, and from its leaf bucket if the bucket was split
+     * @param signature The signature of the email
+     * @param emailId The id of the email
+     * @return True if the email was in the bucket
+     */
+    boolean remove(long signature, int emailId) {
+        boolean removed = this.buckets.remove(signature, emailId);
+        BucketSplit split = this.splits.get(signature);
+        if(removed && split != null) {
+            split.remove(emailId);
+        }
+        return removed;
+    }
+}
@@ -9,12 +9,19 @@ import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class Main {
 
     /**
      * If you have different path for your emails datasets, enter them here.
      * queryFiles contains a custom set of emails you want to give in query
+     * pathDrop receives new emails, indexed as they arrive by the live index
      * pathDq is a single query email
      */
     private final static String pathDataset = "./emails/1";
@@ -25,6 +32,134 @@ public class Main {
     private final static String pathDataset6 = "./emails/6";
     private final static String pathDq = "./dq/dq.txt";
     private final static String queryFiles = "./emails/QueryFiles";
+    private final static String pathDrop = "./emails/drop";
+
+    /**
+     * Folder where the hyperplanes subset collections are saved, so they are only built once
+     */
+    private final static String pathIndexes = "./index";
+
+    /**
+     * File receiving the metrics of the run (stage latencies, candidates per query, bucket sizes) as JSON
+     */
+    private final static String pathMetrics = "./metrics.json";
+
+    /**
+     * File receiving the part 3 evaluation report (error, recall and timing of every configuration) as JSON
+     */
+    private final static String pathEvaluation = "./evaluation.json";
+
+    /**
+     * Maximum number of terms the vector store keeps in memory, summed over all the cached email vectors
+     */
+    private final static long vectorStoreTerms = 20000000;
+
+    /**
+     * Number of threads building the hyperplanes subset collections, 1 builds them serially
+     */
+    private final static int buildThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of threads running the queries of part3 and part4 as a batch, 1 runs them one by one with part2
+     */
+    private final static int queryThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * useProjectionEngine computes the signatures with primitive arithmetic instead of aboveUnderHyperplane
+     */
+    private final static boolean useProjectionEngine = true;
+
+    /**
+     * useFeatureHashing computes the signatures with FeatureHashing instead : the words of an email are hashed once
+     * into a feature vector projected on the hyperplanes of all the tables, with the Vector API when it is available.
+     * Faster to build, but the signatures, and so the indexes, differ from the ones of the hyperplanes above
+     */
+    private final static boolean useFeatureHashing = false;
+
+    /**
+     * probeBudget is the number of neighbouring buckets visited after the bucket of a query, 0 disables multi-probe
+     * probeMaxFlips is the maximal Hamming distance between the query signature and a visited bucket
+     */
+    private final static int probeBudget = 8;
+    private final static int probeMaxFlips = 2;
+
+    /**
+     * Minutes between two compactions of the live index
+     */
+    private final static int compactionMinutes = 10;
+
+    /**
+     * Port of the query server, on the loopback interface
+     */
+    private final static int serverPort = 8438;
+
+    /**
+     * useInvertedIndex answers part1 with an inverted index instead of comparing the query with every email
+     */
+    private final static boolean useInvertedIndex = true;
+
+    /**
+     * useMappedCorpus packs the datasets into memory-mapped segment files in pathIndexes and tokenizes their bytes,
+     * instead of reading and splitting every email file again for every collection and every vector
+     * corpusSegmentBytes is the maximal size of a segment file
+     */
+    private final static boolean useMappedCorpus = true;
+    private final static long corpusSegmentBytes = 1L << 30;
+
+    /**
+     * part4Tables (L) is the number of hyperplanes tables of part4, part4Hyperplanes (K) their number of hyperplanes
+     * tableSeeds are the seeds of the first tables, the following ones are drawn from the first seed
+     */
+    private final static int part4Tables = 4;
+    private final static int part4Hyperplanes = 16;
+    private final static int[] tableSeeds = {264738391, 395847264, 950284883, 673753848};
+
+    /**
+     * maxBucketSize is the size above which a bucket is split by splitHyperplanes extra hyperplanes,
+     * 0 disables splitting. maxSplitDepth is the maximal depth of the tree of split buckets,
+     * the extra hyperplanes of a depth being drawn from splitSeed
+     */
+    private final static int maxBucketSize = 256;
+    private final static int splitHyperplanes = 4;
+    private final static int maxSplitDepth = 4;
+    private final static int splitSeed = 581937264;
+
+    /**
+     * collapseDuplicates collapses the near-duplicate emails of the datasets into one representative per group
+     * before querying the tables. duplicateMaxDistance is the maximal distance of a near-duplicate to its
+     * representative : 0 only collapses emails with the same words, so every 1-nearest answer stays the same.
+     * duplicateMaxBits is the maximal number of differing bits between their SimHash fingerprints
+     */
+    private final static boolean collapseDuplicates = true;
+    private final static double duplicateMaxDistance = 0;
+    private final static int duplicateMaxBits = 3;
+    private final static int duplicateSeed = 748392651;
+
+    /**
+     * knnNeighbours is the number of nearest emails voting for the label of a part4 query, 1 keeps the 1-nearest rule
+     * knnQuorum stops the search of a query once that many neighbours of the same label are within knnThreshold
+     * (in radians), 0 always scores every candidate
+     * knnWeighted weights the votes by cosine similarity instead of a majority vote
+     */
+    private final static int knnNeighbours = 1;
+    private final static int knnQuorum = 3;
+    private final static double knnThreshold = 0.5;
+    private final static boolean knnWeighted = true;
+
+    private final AtomicLong probes = new AtomicLong();
+    private final DocumentTable documents = new DocumentTable();
+    private final TermDictionary dictionary = new TermDictionary();
+    private final VectorStore vectorStore = new VectorStore(vectorStoreTerms, this::vectorize);
+    private InvertedIndex exactIndex;
+    private OffHeapVectors offHeapVectors;
+    private MappedCorpus corpus;
+    private List<List<File>> corpusFiles;
+    private File indexDirectory = new File(pathIndexes);
+    private String corpusName = "corpus-" + (debug ? "debug" : "full");
+    private final List<LshTable> builtTables = new ArrayList<>();
+    private final NearDuplicates nearDuplicates = new NearDuplicates(duplicateSeed, duplicateMaxBits,
+            duplicateMaxDistance);
+    private int examinedEmails = 0;
 
     /**
      * verbose option enables more message display
@@ -34,6 +169,13 @@ public class Main {
     private final static boolean debug = true;
     private final static boolean verbose = false;
 
+    /**
+     * useOffHeapVectors answers part1 by scanning the vectors of all the emails kept outside of the heap,
+     * so the heap does not grow with the datasets. Used with the full datasets, the inverted index being faster
+     * as long as it fits in the heap
+     */
+    private final static boolean useOffHeapVectors = !debug;
+
     public static void main(String[] args) {
 
         Main main = new Main();
@@ -49,7 +191,7 @@ public class Main {
             // Part 2
             /*
             List<HashFunction> hyperplanes = main.constructHyperplanes(4);
-            Map<String,Set<String>> result = main.getHyperplanesSubset(hyperplanes);
+            SignatureBuckets result = main.getHyperplanesSubset(hyperplanes);
             main.part2(pathDq, result, hyperplanes, totalResultsLog);
             */
 
@@ -59,7 +201,26 @@ public class Main {
             // Part 4
             //main.part4(pathDataset6);
 
+            // Auto-tune of the number of tables L and of hyperplanes K of part 4
+            //main.autoTune(queryFiles, new int[] {1, 2, 4, 8}, new int[] {4, 8, 16, 32}, 0.9);
+
+            // Part 4 index split into shards built and queried by local worker processes
+            //main.shardScaling(queryFiles, new int[] {1, 2, 4});
+
+            // Live index, updated with the emails dropped in pathDrop
+            //DropDirectoryWatcher watcher = main.startLiveIndex(pathDrop);
+            //main.part4(pathDataset6, watcher.getIndex());
+
+            // Query server on a warm index, see QueryServer and LoadGenerator
+            //QueryServer server = main.startQueryServer(serverPort);
+            //QueryServer server = main.startQueryServer(serverPort, watcher.getIndex());
+
+            // Projection engine check against the BigInteger hyperplanes
+            //main.verifyProjectionEngine(pathDataset, 16, 264738391);
+            //main.verifyProjectionEdgeCases(16, 264738391);
+
             Main.displayTimeNeeded(startTimer);
+            main.dumpMetrics();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -89,13 +250,37 @@ public class Main {
         return myMap;
     }
 
+    /**
+     * Takes all the words in an email and return its vector, encoded with the term dictionary
+     * @param email content of the email
+     * @return the sparse vector of the occurences
+     */
+    SparseVector vectorize(String email) {
+        long startTimer = System.nanoTime();
+        SparseVector vector = SparseVector.of(email.substring(9).split(" "), this.dictionary);
+        Metrics.record(Metrics.Stage.TOKENIZE, startTimer);
+        return vector;
+    }
+
+    /**
+     * Converts a query email into a vector, without adding its unknown words to the dictionary
+     * @param email The content of the email
+     * @return The vector of the email, with the same distances to the emails as the one given by vectorize
+     */
+    SparseVector vectorizeQuery(String email) {
+        long startTimer = System.nanoTime();
+        SparseVector vector = SparseVector.ofQuery(email.substring(9).split(" "), this.dictionary);
+        Metrics.record(Metrics.Stage.TOKENIZE, startTimer);
+        return vector;
+    }
+
     /**
      * Compute the distance between two vectors
      * @param vector1 A map of the occurences of every word in an email
      * @param vector2 A map of the occurences of every word in an email
      * @return the distance between the two vectors
      */
-    private double computeDistance(Map<String, Integer> vector1, Map<String, Integer> vector2) {
+    double computeDistance(Map<String, Integer> vector1, Map<String, Integer> vector2) {
         double distance = 0;
         if(vector1 != null && vector2 != null) {
             Integer finalDistance = 0;
@@ -127,30 +312,167 @@ public class Main {
     }
 
     /**
-     * Compute the minimal distance between a vector query email and a list of email vectors
+     * Compute the minimal distance between a vector query email and a list of email vectors.
+     * Emails are compared by cosine similarity, skipping the ones that cannot beat the nearest email so far,
+     * and only the minimal distance is computed as an angle.
      * @param listvectors The vectors in the datasets
      * @param testedVector The query vector
-     * @param log Information about the message and the distance will be stored there
-     * @return The index of the email in the dataset with the minimal distance
+     * @return The index of the email in the dataset with the minimal distance, and that distance
      */
-    private int computeMinDistance(List<Map<String, Integer>> listvectors, Map<String, Integer> testedVector,
-                                   StringBuilder log) {
-        double distance = Double.MAX_VALUE;
+    private InvertedIndex.Neighbour computeMinDistance(List<SparseVector> listvectors, SparseVector testedVector) {
+        long startTimer = System.nanoTime();
+        double cosine = Double.NEGATIVE_INFINITY;
         int index = 0;
         int minIndex = Integer.MAX_VALUE;
-        for(Map<String, Integer> vector : listvectors) {
-            double tmpDistance = computeDistance(testedVector, vector);
-            if(tmpDistance < distance) {
-                distance = tmpDistance;
+        for(SparseVector vector : listvectors) {
+            double tmpCosine = testedVector.cosineAbove(vector, cosine);
+            if(tmpCosine > cosine) {
+                cosine = tmpCosine;
                 minIndex = index;
             }
             index++;
         }
-        log.append(distance);
-        if(verbose) System.out.println("Minimum Distance is : " + distance);
-        return minIndex;
+        double distance = minIndex == Integer.MAX_VALUE ? Double.MAX_VALUE : SparseVector.toDistance(cosine);
+        Metrics.record(Metrics.Stage.SCORING, startTimer);
+        return new InvertedIndex.Neighbour(minIndex, distance);
+    }
+
+
+    /**
+     * Compute the minimal distance between a vector query email and the off-heap vectors of the datasets
+     * @param vectors The vectors in the datasets
+     * @param testedVector The query vector
+     * @return The index of the email in the dataset with the minimal distance, and that distance
+     */
+    private InvertedIndex.Neighbour computeMinDistance(OffHeapVectors vectors, SparseVector testedVector) {
+        long startTimer = System.nanoTime();
+        double cosine = Double.NEGATIVE_INFINITY;
+        int minIndex = Integer.MAX_VALUE;
+        for(int index = 0; index < vectors.size(); index++) {
+            double tmpCosine = vectors.cosineAbove(testedVector, index, cosine);
+            if(tmpCosine > cosine) {
+                cosine = tmpCosine;
+                minIndex = index;
+            }
+        }
+        double distance = minIndex == Integer.MAX_VALUE ? Double.MAX_VALUE : SparseVector.toDistance(cosine);
+        Metrics.record(Metrics.Stage.SCORING, startTimer);
+        return new InvertedIndex.Neighbour(minIndex, distance);
     }
 
+    /**
+     * Get the off-heap vectors of all the emails in the datasets, built on first use.
+     * The vectors are loaded one at a time without going through the cache of the vector store.
+     * @param listFileNames The paths of the emails in the datasets, grouped by folder
+     * @return The vectors, in the order of the datasets
+     * @throws IOException If some file was not to be found
+     */
+    private synchronized OffHeapVectors getOffHeapVectors(List<List<String>> listFileNames) throws IOException {
+        if(this.offHeapVectors == null) {
+            long startTimer = System.nanoTime();
+            OffHeapVectors vectors = new OffHeapVectors();
+            for(List<String> listFolderFilesNames : listFileNames) {
+                for(String fileName : listFolderFilesNames) {
+                    vectors.add(this.vectorStore.load(fileName));
+                }
+            }
+            this.offHeapVectors = vectors;
+            System.err.println("[INFO] " + vectors.size() + " vectors stored off-heap in "
+                    + (vectors.memoryBytes() / (1024 * 1024)) + " MB");
+            Main.displayTimeNeeded(startTimer);
+        }
+        return this.offHeapVectors;
+    }
+
+    /**
+     * Get the inverted index of all the emails in the datasets, built on first use
+     * @param listFileNames The paths of the emails in the datasets, grouped by folder
+     * @return The inverted index, giving the positions of the emails in the datasets
+     * @throws IOException If some file was not to be found
+     */
+    private synchronized InvertedIndex getExactIndex(List<List<String>> listFileNames) throws IOException {
+        if(this.exactIndex == null) {
+            List<SparseVector> datasets = new ArrayList<>();
+            for(List<String> listFolderFilesNames : listFileNames) {
+                for(String fileName : listFolderFilesNames) {
+                    datasets.add(this.vectorStore.get(fileName));
+                }
+            }
+            this.exactIndex = new InvertedIndex(datasets, this.dictionary.size());
+        }
+        return this.exactIndex;
+    }
+
+
+    /**
+     * Get the vectors of all the emails in the datasets, when the exact search compares a query with every one
+     * of them on the heap
+     * @param listFileNames The paths of the emails in the datasets, grouped by folder
+     * @return The vectors, in the order of the datasets, null if the exact search uses the off-heap vectors
+     *         or the inverted index instead
+     * @throws IOException If some file was not to be found
+     */
+    private List<SparseVector> getScannedVectors(List<List<String>> listFileNames) throws IOException {
+        if(useOffHeapVectors || useInvertedIndex) {
+            return null;
+        }
+        List<SparseVector> datasets = new ArrayList<>();
+        for(List<String> listFolderFilesNames : listFileNames) {
+            for(String fileName : listFolderFilesNames) {
+                datasets.add(this.vectorStore.get(fileName));
+            }
+        }
+        return datasets;
+    }
+
+    /**
+     * Finds the nearest email in the datasets to a query, with the off-heap vectors, the inverted index
+     * or by comparing it with every vector
+     * @param listFileNames The paths of the emails in the datasets, grouped by folder
+     * @param datasets The vectors given by getScannedVectors
+     * @param query The query vector
+     * @return The index of the nearest email in the datasets, and its distance
+     * @throws IOException If some file was not to be found
+     */
+    private InvertedIndex.Neighbour findExactNearest(List<List<String>> listFileNames, List<SparseVector> datasets,
+                                                     SparseVector query) throws IOException {
+        if(useOffHeapVectors) {
+            return this.computeMinDistance(this.getOffHeapVectors(listFileNames), query);
+        } else if(useInvertedIndex) {
+            InvertedIndex exactIndex = this.getExactIndex(listFileNames);
+            long startTimer = System.nanoTime();
+            InvertedIndex.Neighbour neighbour = exactIndex.nearest(query);
+            Metrics.record(Metrics.Stage.SCORING, startTimer);
+            return neighbour;
+        }
+        return this.computeMinDistance(datasets, query);
+    }
+
+    /**
+     * Get the exact distance of every query to its nearest email, as part 1 does, listing and loading the
+     * datasets once for all the queries
+     * @param listQueries The query emails
+     * @return The exact distance of every query, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    private double[] getExactDistances(List<File> listQueries) throws Exception {
+        List<List<String>> listFileNames = new ArrayList<>();
+        for(List<File> folder : Main.getDatasetsFiles()) {
+            List<String> listFolderFilesNames = new ArrayList<>();
+            for(File file : folder) {
+                listFolderFilesNames.add(file.getAbsolutePath());
+            }
+            listFileNames.add(listFolderFilesNames);
+        }
+        List<SparseVector> datasets = this.getScannedVectors(listFileNames);
+
+        double[] distances = new double[listQueries.size()];
+        for(int i = 0; i < distances.length; i++) {
+            SparseVector query = this.vectorStore.get(listQueries.get(i).getAbsolutePath());
+            distances[i] = this.findExactNearest(listFileNames, datasets, query).distance;
+        }
+        return distances;
+    }
 
     /* ******************************************* Part 2 Computation *************************************************/
 
@@ -160,7 +482,7 @@ public class Main {
      * @param email The tested email
      * @return False means under and True above
      */
-    private boolean aboveUnderHyperplane(HashFunction h, String email) {
+    boolean aboveUnderHyperplane(HashFunction h, String email) {
         BigInteger result = new BigInteger("0");
         email = email.substring(9);
         String[] words = email.split(" ");
@@ -182,51 +504,255 @@ public class Main {
      * @param email The email to be placed in the subset collection
      * @throws IOException File issues
      */
-    private void updateSubsetMessages(Map<String, Set<String>> collection, List<HashFunction> hyperplanes, File email)
+    void updateSubsetMessages(SignatureBuckets collection, List<HashFunction> hyperplanes, File email)
             throws IOException{
 
-        StringBuilder signature = new StringBuilder();
+        this.updateSubsetMessages(Collections.singletonList(collection), Collections.singletonList(hyperplanes), email);
+    }
 
-        String emailContent = Files.toString(email, Charsets.UTF_8);
-        String emailPath = email.getAbsolutePath();
-        for(HashFunction f : hyperplanes) {
+    /**
+     * Add an email to the corresponding subset of every table, reading it once
+     * @param collections The subset collection of every table
+     * @param tables The hyperplanes of every table
+     * @param email The email to be placed in the subset collections
+     * @throws IOException File issues
+     */
+    void updateSubsetMessages(List<SignatureBuckets> collections, List<List<HashFunction>> tables, File email)
+            throws IOException{
 
-            if(this.aboveUnderHyperplane(f, emailContent)) {
-                signature.append(0);
-            } else {
-                signature.append(1);
+        String emailContent = Main.getEmailContent(email.getPath());
+        int emailId = this.registerEmail(email);
+        if(useFeatureHashing) {
+            int[] indexes = ProjectionEngine.wordHashes(emailContent);
+            this.updateSubsetMessages(collections, tables, indexes, indexes.length, emailId);
+            return;
+        }
+        for(int t = 0; t < tables.size(); t++) {
+            collections.get(t).add(this.getEmailSignature(tables.get(t), emailContent), emailId);
+        }
+    }
+
+    /**
+     * Add an email of a packed corpus to the corresponding subset of every table, tokenizing it once
+     * @param collections The subset collection of every table
+     * @param tables The hyperplanes of every table
+     * @param corpus The packed emails
+     * @param index The position of the email in the corpus
+     */
+    void updateSubsetMessages(List<SignatureBuckets> collections, List<List<HashFunction>> tables,
+                              MappedCorpus corpus, int index) {
+
+        long startTimer = System.nanoTime();
+        MappedCorpus.Tokenizer words = corpus.tokenize(index);
+        Metrics.record(Metrics.Stage.TOKENIZE, startTimer);
+        int emailId = this.registerEmail(new File(corpus.getPath(index)));
+        if(useFeatureHashing) {
+            this.updateSubsetMessages(collections, tables, words.wordHashes, words.length, emailId);
+            return;
+        }
+        for(int t = 0; t < tables.size(); t++) {
+            List<HashFunction> hyperplanes = tables.get(t);
+            if(hyperplanes.size() > 64) {
+                throw new IllegalArgumentException("Signatures are limited to 64 hyperplanes");
             }
+            startTimer = System.nanoTime();
+            long signature = ProjectionEngine.signature(hyperplanes, words.wordHashes, words.length);
+            Metrics.record(Metrics.Stage.SIGNATURE, startTimer);
+            collections.get(t).add(signature, emailId);
+        }
+    }
+
+    /**
+     * Add the word hashes of an email to the corresponding subset of every table, projecting them with FeatureHashing
+     * @param collections The subset collection of every table
+     * @param tables The hyperplanes of every table
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @param emailId The id of the email
+     */
+    private void updateSubsetMessages(List<SignatureBuckets> collections, List<List<HashFunction>> tables,
+                                      int[] indexes, int length, int emailId) {
+        long startTimer = System.nanoTime();
+        long[] signatures = FeatureHashing.signatures(tables, indexes, length);
+        Metrics.record(Metrics.Stage.SIGNATURE, startTimer);
+        for(int t = 0; t < tables.size(); t++) {
+            collections.get(t).add(signatures[t], emailId);
         }
+    }
+
+    /**
+     * Get the id of an email of the datasets, registering it with its label if needed
+     * @param email The email
+     * @return The id of the email in the document table
+     */
+    int registerEmail(File email) {
+        return this.documents.add(email.getAbsolutePath(), Main.isSpamEmail(email));
+    }
+
+    /**
+     * Get the label of an email, given by the datasets in the name of its file
+     * @param email The email
+     * @return True if the email is a spam
+     */
+    static boolean isSpamEmail(File email) {
+        return email.getName().contains("spam");
+    }
 
-        String strSignature = signature.toString();
+    /**
+     * Get the query email signature
+     * @param hyperplanes The hyperplanes creating the signature for the subsets
+     * @param emailContent The content of the email
+     * @return The generated signature for the query email, bit i being set when under hyperplane i
+     */
+    long getEmailSignature(List<HashFunction> hyperplanes, String emailContent) {
 
-        if(!collection.containsKey(strSignature)) {
-            Set<String> tmpSet = new HashSet<>();
-            tmpSet.add(emailPath);
-            collection.put(strSignature, tmpSet);
+        if(hyperplanes.size() > 64) {
+            throw new IllegalArgumentException("Signatures are limited to 64 hyperplanes");
+        }
+
+        long startTimer = System.nanoTime();
+        long signature = 0;
+        if(useFeatureHashing) {
+            signature = FeatureHashing.signature(hyperplanes, emailContent);
+        } else if(useProjectionEngine) {
+            signature = ProjectionEngine.signature(hyperplanes, emailContent);
         } else {
-            collection.get(strSignature).add(emailPath);
+            for(int i = 0; i < hyperplanes.size(); i++) {
+                if(!this.aboveUnderHyperplane(hyperplanes.get(i), emailContent)) {
+                    signature |= 1L << i;
+                }
+            }
         }
+        Metrics.record(Metrics.Stage.SIGNATURE, startTimer);
+        return signature;
     }
 
     /**
-     * Get the query email signature
+     * Get the signatures of the buckets to visit for a query email : its own signature first,
+     * then the multi-probe sequence of its neighbouring buckets
      * @param hyperplanes The hyperplanes creating the signature for the subsets
      * @param emailContent The content of the email
-     * @return The generated signature for the query email
+     * @param probeBudget The maximal number of neighbouring buckets
+     * @return The signatures to visit, in order
      */
-    private String getEmailSignature(List<HashFunction> hyperplanes, String emailContent) {
+    long[] getProbedSignatures(List<HashFunction> hyperplanes, String emailContent, int probeBudget) {
+        if(probeBudget <= 0) {
+            return new long[] {this.getEmailSignature(hyperplanes, emailContent)};
+        }
 
-        StringBuilder signature = new StringBuilder();
+        long startTimer = System.nanoTime();
+        double[] projections = new double[hyperplanes.size()];
+        long signature = useFeatureHashing ? FeatureHashing.signature(hyperplanes, emailContent, projections)
+                : ProjectionEngine.signature(hyperplanes, emailContent, projections);
+        long[] neighbours = MultiProbe.probes(signature, projections, probeMaxFlips, probeBudget);
+        this.probes.addAndGet(neighbours.length);
+        Metrics.record(Metrics.Stage.SIGNATURE, startTimer);
+
+        long[] signatures = new long[neighbours.length + 1];
+        signatures[0] = signature;
+        System.arraycopy(neighbours, 0, signatures, 1, neighbours.length);
+        return signatures;
+    }
 
-        for(HashFunction f : hyperplanes) {
-            if(this.aboveUnderHyperplane(f, emailContent)) {
-                signature.append(0);
-            } else {
-                signature.append(1);
+    /**
+     * Checks that the projection engine gives bit-for-bit the same signatures as aboveUnderHyperplane
+     * @param pathFolder A path to a folder of sample emails
+     * @param numberHyperplanes The number of hyperplanes of the signatures
+     * @param seed The generating seed of the hyperplanes
+     * @return True if every signature is identical
+     * @throws Exception If some file was not to be found
+     */
+    public boolean verifyProjectionEngine(String pathFolder, int numberHyperplanes, int seed) throws Exception {
+        List<HashFunction> hyperplanes = this.constructHyperplanes(numberHyperplanes, seed);
+        int numberEmails = 0;
+        int mismatches = 0;
+        for(File email : getEmailsContent(pathFolder)) {
+            String emailContent = Main.getEmailContent(email.getPath());
+            boolean[] above = ProjectionEngine.aboveUnderHyperplanes(hyperplanes, emailContent);
+            for(int i = 0; i < hyperplanes.size(); i++) {
+                if(above[i] != this.aboveUnderHyperplane(hyperplanes.get(i), emailContent)) {
+                    mismatches++;
+                    if(verbose) System.out.println("Mismatch on hyperplane " + i + " for " + email.getAbsolutePath());
+                }
             }
+            numberEmails++;
         }
-        return signature.toString();
+        System.err.println("[INFO] Projection engine check on " + numberEmails + " emails and " + numberHyperplanes
+                + " hyperplanes : " + mismatches + " mismatches");
+        return mismatches == 0;
+    }
+
+    /**
+     * Checks the projection engine against aboveUnderHyperplane on synthetic emails made to overflow 64 bits :
+     * the word of hash Integer.MIN_VALUE and, for every hyperplane, the words of largest positive and negative
+     * weight, repeated up to 30000 times alone or against each other
+     * @param numberHyperplanes The number of hyperplanes of the signatures
+     * @param seed The generating seed of the hyperplanes
+     * @return True if every signature is identical
+     */
+    public boolean verifyProjectionEdgeCases(int numberHyperplanes, int seed) {
+        List<HashFunction> hyperplanes = this.constructHyperplanes(numberHyperplanes, seed);
+        int[] repetitions = {1, 2, 3, 1000, 30000};
+        int numberEmails = 0;
+        int mismatches = 0;
+
+        // "polygenelubricants".hashCode() is Integer.MIN_VALUE, the empty word has an index of 0
+        List<String> words = new ArrayList<>(Arrays.asList("polygenelubricants", ""));
+        String[][] heaviest = new String[hyperplanes.size()][2];
+        for(int i = 0; i < hyperplanes.size(); i++) {
+            long largest = 0;
+            long smallest = 0;
+            for(int j = 0; j < 1 << 16; j++) {
+                String word = "w" + j;
+                long weight = (long) word.hashCode() * hyperplanes.get(i).hashLong(word.hashCode()).asInt();
+                if(weight > largest) {
+                    largest = weight;
+                    heaviest[i][0] = word;
+                }
+                if(weight < smallest) {
+                    smallest = weight;
+                    heaviest[i][1] = word;
+                }
+            }
+            words.add(heaviest[i][0]);
+            words.add(heaviest[i][1]);
+        }
+
+        // Repeated words, checked on every hyperplane
+        for(String word : words) {
+            for(int repetition : repetitions) {
+                String emailContent = "Subject: " + String.join(" ", Collections.nCopies(repetition, word));
+                boolean[] above = ProjectionEngine.aboveUnderHyperplanes(hyperplanes, emailContent);
+                for(int i = 0; i < hyperplanes.size(); i++) {
+                    if(above[i] != this.aboveUnderHyperplane(hyperplanes.get(i), emailContent)) {
+                        mismatches++;
+                        if(verbose) System.out.println("Mismatch on hyperplane " + i + " for " + repetition
+                                + " times \"" + word + "\"");
+                    }
+                }
+                numberEmails++;
+            }
+        }
+
+        // Largest positive against largest negative weight, checked on their own hyperplane
+        for(int i = 0; i < hyperplanes.size(); i++) {
+            for(int positive : repetitions) {
+                for(int negative : repetitions) {
+                    String emailContent = "Subject: " + String.join(" ", Collections.nCopies(positive, heaviest[i][0]))
+                            + " " + String.join(" ", Collections.nCopies(negative, heaviest[i][1]));
+                    boolean above = ProjectionEngine.aboveUnderHyperplanes(hyperplanes, emailContent)[i];
+                    if(above != this.aboveUnderHyperplane(hyperplanes.get(i), emailContent)) {
+                        mismatches++;
+                        if(verbose) System.out.println("Mismatch on hyperplane " + i + " for " + positive + " times \""
+                                + heaviest[i][0] + "\" and " + negative + " times \"" + heaviest[i][1] + "\"");
+                    }
+                    numberEmails++;
+                }
+            }
+        }
+        System.err.println("[INFO] Projection engine edge cases on " + numberEmails + " emails and "
+                + numberHyperplanes + " hyperplanes : " + mismatches + " mismatches");
+        return mismatches == 0;
     }
 
     /**
@@ -235,7 +761,7 @@ public class Main {
      * @param seed The generating seed for predictable results
      * @return A list of the generated murmur3 hash functions representing the hyperplanes
      */
-    private List<HashFunction> constructHyperplanes(int numberHyperplanes, int seed) {
+    List<HashFunction> constructHyperplanes(int numberHyperplanes, int seed) {
         return this.generatePredictableHashesFunction(numberHyperplanes, seed);
     }
 
@@ -244,28 +770,199 @@ public class Main {
      * @param hyperplanes The hyperplanes created to generate the subsets
      * @return The full subset collection of emails
      */
-    private Map<String,Set<String>> getHyperplanesSubset(List<HashFunction> hyperplanes) {
+    private SignatureBuckets getHyperplanesSubset(List<HashFunction> hyperplanes) {
+        return this.getHyperplanesSubsets(Collections.singletonList(hyperplanes)).get(0);
+    }
+
+    /**
+     * Get the full subset collections of emails in the datasets of several tables, in a single pass over the emails
+     * @param tables The hyperplanes of every table
+     * @return The full subset collection of every table
+     */
+    private List<SignatureBuckets> getHyperplanesSubsets(List<List<HashFunction>> tables) {
 
-        Map<String, Set<String>> result = new HashMap<>();
-        List<List<File>> files;
         try {
+            return this.getHyperplanesSubsets(tables, Main.getDatasetsFiles(), buildThreads);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+        List<SignatureBuckets> results = new ArrayList<>();
+        for(int t = 0; t < tables.size(); t++) {
+            results.add(new SignatureBuckets());
+        }
+        return results;
+    }
+
+    /**
+     * Get the full subset collection of the given emails
+     * @param hyperplanes The hyperplanes created to generate the subsets
+     * @param files The emails, grouped by folder
+     * @param threads The number of threads building the collection, 1 builds it serially
+     * @return The full subset collection of emails
+     * @throws IOException If an email could not be read
+     */
+    SignatureBuckets getHyperplanesSubset(List<HashFunction> hyperplanes, List<List<File>> files, int threads)
+            throws IOException {
+        return this.getHyperplanesSubsets(Collections.singletonList(hyperplanes), files, threads).get(0);
+    }
+
+    /**
+     * Get the full subset collections of the given emails for several tables, reading every email once
+     * @param tables The hyperplanes of every table
+     * @param files The emails, grouped by folder
+     * @param threads The number of threads building the collections, 1 builds them serially
+     * @return The full subset collection of every table
+     * @throws IOException If an email could not be read
+     */
+    List<SignatureBuckets> getHyperplanesSubsets(List<List<HashFunction>> tables, List<List<File>> files, int threads)
+            throws IOException {
 
-            if (debug) {
-                files = new ArrayList<>();
-                files.add(Main.getEmailsContent(pathDataset));
-            } else
-                files = Main.getAllFiles();
+        MappedCorpus corpus = useMappedCorpus && useProjectionEngine ? this.getMappedCorpus(files) : null;
 
+        if (threads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ParallelSubsetBuilder builder = new ParallelSubsetBuilder(this, pool, 64);
+                return corpus != null ? builder.build(corpus, tables) : builder.build(files, tables);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        List<SignatureBuckets> results = new ArrayList<>();
+        for (int t = 0; t < tables.size(); t++) {
+            results.add(new SignatureBuckets());
+        }
+        if (corpus != null) {
+            for (int i = 0; i < corpus.size(); i++) {
+                this.updateSubsetMessages(results, tables, corpus, i);
+            }
+        } else {
             for (List<File> folder : files) {
                 for (File file : folder) {
-                    this.updateSubsetMessages(result, hyperplanes, file);
+                    this.updateSubsetMessages(results, tables, file);
                 }
             }
+        }
+        for (SignatureBuckets result : results) {
+            result.compact();
+        }
+        return results;
+    }
+
+    /**
+     * Saves the indexes and the packed corpus of this instance into another directory than pathIndexes,
+     * so an instance working on other emails (such as the synthetic corpus of Main.Benchmark) never overwrites
+     * the files of the datasets
+     * @param directory The directory of the indexes and of the corpus
+     * @param corpusName The prefix of the segment files of the corpus
+     */
+    void setIndexDirectory(File directory, String corpusName) {
+        this.indexDirectory = directory;
+        this.corpusName = corpusName;
+    }
+
+    /**
+     * Get the packed corpus of the given emails, packing them on first use or when the saved one is stale.
+     * The vector store then reads the vectors of these emails from the corpus.
+     * @param files The emails, grouped by folder
+     * @return The packed corpus
+     * @throws IOException If an email could not be read
+     */
+    private synchronized MappedCorpus getMappedCorpus(List<List<File>> files) throws IOException {
+        if (this.corpus == null || !files.equals(this.corpusFiles)) {
+            this.corpus = MappedCorpus.openOrPack(this.indexDirectory, this.corpusName, files, corpusSegmentBytes,
+                    this.dictionary);
+            this.corpusFiles = files;
+            this.vectorStore.setCorpus(this.corpus);
+        }
+        return this.corpus;
+    }
+
+    /**
+     * Get the full subset collection of emails in the datasets from the index saved on disk.
+     * The collection is built and saved when no index exists yet or when the saved one is stale.
+     * @param hyperplanes The hyperplanes created to generate the subsets
+     * @param seed The seed used to construct the hyperplanes
+     * @return The full subset collection of emails
+     */
+    private SignatureBuckets getIndexedHyperplanesSubset(List<HashFunction> hyperplanes, int seed) {
+        return this.getIndexedHyperplanesSubsets(Collections.singletonList(hyperplanes), new int[] {seed}).get(0);
+    }
+
+    /**
+     * Get the full subset collections of emails in the datasets of several tables from the indexes saved on disk.
+     * The collections without an index or with a stale one are built together in a single pass, then saved.
+     * @param tables The hyperplanes of every table
+     * @param seeds The seed used to construct the hyperplanes of every table
+     * @return The full subset collection of every table
+     */
+    List<SignatureBuckets> getIndexedHyperplanesSubsets(List<List<HashFunction>> tables, int[] seeds) {
 
+        List<SignatureBuckets> results = new ArrayList<>(Collections.nCopies(tables.size(), (SignatureBuckets) null));
+        List<Integer> missing = new ArrayList<>();
+        MappedCorpus.Stamp stamp = null;
+        try {
+            List<List<File>> files = Main.getDatasetsFiles();
+            stamp = MappedCorpus.Stamp.of(files);
+            if (useMappedCorpus) {
+                // Also used by the vector store when the collections are loaded from the indexes
+                this.getMappedCorpus(files);
+            }
         } catch(Exception e) {
             e.printStackTrace();
         }
-        return result;
+
+        for (int t = 0; t < tables.size(); t++) {
+            File indexFile = this.getIndexFile(seeds[t], tables.get(t).size());
+            try {
+                if (indexFile.exists() && stamp != null) {
+                    LshIndexFile index = LshIndexFile.open(indexFile);
+                    if (index.matches(seeds[t], tables.get(t).size(), debug, stamp)) {
+                        if(verbose) System.out.println("Loading index " + indexFile.getPath());
+                        results.set(t, index.readSubsets(this.documents));
+                        continue;
+                    }
+                    System.err.println("[INFO] Stale index " + indexFile.getPath() + " (seed " + index.getSeed() + ", "
+                            + index.getNumberHyperplanes() + " hyperplanes), rebuilding...");
+                }
+            } catch(IOException e) {
+                System.err.println("[INFO] Unreadable index " + indexFile.getPath() + " (" + e.getMessage() + "), rebuilding...");
+            }
+            missing.add(t);
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        List<List<HashFunction>> missingTables = new ArrayList<>();
+        for (int t : missing) {
+            missingTables.add(tables.get(t));
+        }
+        List<SignatureBuckets> built = this.getHyperplanesSubsets(missingTables);
+        for (int i = 0; i < missing.size(); i++) {
+            int t = missing.get(i);
+            results.set(t, built.get(i));
+            if (stamp == null) {
+                continue;
+            }
+            try {
+                LshIndexFile.write(this.getIndexFile(seeds[t], tables.get(t).size()), built.get(i), this.documents,
+                        seeds[t], tables.get(t).size(), debug, stamp);
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param seed The seed used to construct the hyperplanes
+     * @param numberHyperplanes The number of hyperplanes
+     * @return The file of the index of these hyperplanes
+     */
+    private File getIndexFile(int seed, int numberHyperplanes) {
+        return new File(this.indexDirectory, "lsh-" + seed + "-" + numberHyperplanes + (useFeatureHashing ? "-fh" : "") + ".idx");
     }
 
 
@@ -291,15 +988,32 @@ public class Main {
         return filesArray;
     }
 
+    /**
+     * Get the files of the datasets used by the current run, depending on the debug option
+     * @return A list of folder files, grouped by folder
+     * @throws Exception If a folder was not found
+     */
+    private static List<List<File>> getDatasetsFiles() throws Exception {
+        if(debug) {
+            List<List<File>> files = new ArrayList<>();
+            files.add(Main.getEmailsContent(pathDataset));
+            return files;
+        }
+        return Main.getAllFiles();
+    }
+
     /**
      * Get the content of an email from its path, encoded in UTF-8
      * @param pathToFile The path to the file
      * @return The content of the email
      * @throws IOException If the file did not exist
      */
-    private static String getEmailContent(String pathToFile) throws IOException {
+    static String getEmailContent(String pathToFile) throws IOException {
+        long startTimer = System.nanoTime();
         File file = new File(pathToFile);
-        return Files.toString(file, Charsets.UTF_8);
+        String content = Files.toString(file, Charsets.UTF_8);
+        Metrics.record(Metrics.Stage.READ, startTimer);
+        return content;
     }
 
     /* ******************************************* Utilitary functions ************************************************/
@@ -340,16 +1054,47 @@ public class Main {
      * Displays general execution information
      */
     private static void displayGeneralInformation() {
-        System.err.println("[INFO] Heap Size = " + (Runtime.getRuntime().totalMemory() / 1000) + " MB");
+        System.err.println("[INFO] Heap Size = " + (Runtime.getRuntime().totalMemory() / (1024 * 1024)) + " MB (max "
+                + (Runtime.getRuntime().maxMemory() / (1024 * 1024)) + " MB)");
         //System.err.println("[INFO] Available Processors = " + Runtime.getRuntime().availableProcessors());
     }
 
+    /**
+     * Writes the metrics of the run into pathMetrics, with the bucket sizes of every table built during the run
+     */
+    public void dumpMetrics() {
+        try {
+            Metrics.dump(new File(pathMetrics), this.builtTables);
+            System.err.println("[INFO] Metrics written to " + pathMetrics);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Displays the time needed to execute something from the last date given in parameters. Unit given in ms.
      * @param startTime Last time
      */
     private static void displayTimeNeeded(long startTime) {
-        System.err.println("[INFO] Time needed = " + ((System.nanoTime() - startTime) / 1000000)+ " ms");
+        Main.displayDuration(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Displays a duration. Unit given in ms.
+     * @param duration The duration in ns
+     */
+    private static void displayDuration(long duration) {
+        System.err.println("[INFO] Time needed = " + (duration / 1000000)+ " ms");
+    }
+
+    /**
+     * Displays how many queries were answered per second
+     * @param numberQueries The number of queries
+     * @param startTime Time when the first query started
+     */
+    private static void displayThroughput(int numberQueries, long startTime) {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.err.println("[INFO] Throughput = " + (numberQueries / seconds) + " queries/s");
     }
 
     /**
@@ -364,6 +1109,23 @@ public class Main {
     }
 
 
+    /**
+     * Calculates the rate of queries for which the approximate search found an email at the exact minimal distance
+     * @param exactDistances The exact distance of every query
+     * @param approximateDistances The approximate distance of every query
+     * @return The recall, from 0 to 1.
+     */
+    private static double calculateRecall(double[] exactDistances, double[] approximateDistances) {
+        int found = 0;
+        for(int i = 0; i < exactDistances.length; i++) {
+            if(approximateDistances[i] <= exactDistances[i]) {
+                found++;
+            }
+        }
+        return (double) found / exactDistances.length;
+    }
+
+
     /* ********************************************* Part Functions ***************************************************/
 
     /**
@@ -373,21 +1135,11 @@ public class Main {
      */
     public void part1(String pathDq, StringBuilder resultsLog) {
         try {
-            List<List<File>> files = null;
+            List<List<File>> files = Main.getDatasetsFiles();
 
-            if(debug) {
-                files = new ArrayList<>();
-                files.add(Main.getEmailsContent(pathDataset));
-            }
-            else
-                files = Main.getAllFiles();
-
-            List<Map<String, Integer>> datasets = new ArrayList<>();
             List<List<String>> listFileNames = new ArrayList<>();
 
-            Map<String, Integer> dqMail = null;
-
-            dqMail = this.convert(Main.getEmailContent(pathDq));
+            SparseVector dqMail = this.vectorStore.get(new File(pathDq).getAbsolutePath());
 
             List<Integer> folderSizes = new ArrayList<>();
             for(List<File> folder : files) {
@@ -396,16 +1148,18 @@ public class Main {
                 List<String> listFolderFilesNames = new ArrayList<>();
                 for(File file : folder) {
 
-                    String fileContent = Files.toString(file, Charsets.UTF_8);
                     listFolderFilesNames.add(file.getAbsolutePath());
-                    datasets.add(this.convert(fileContent));
                     numberFiles++;
                 }
                 folderSizes.add(numberFiles);
                 listFileNames.add(listFolderFilesNames);
             }
 
-            int neighbourMessageIndex = (this.computeMinDistance(datasets, dqMail, resultsLog));
+            InvertedIndex.Neighbour neighbour = this.findExactNearest(listFileNames, this.getScannedVectors(listFileNames),
+                    dqMail);
+            resultsLog.append(neighbour.distance);
+            if(verbose) System.out.println("Minimum Distance is : " + neighbour.distance);
+            int neighbourMessageIndex = neighbour.index;
 
             for(int it = 0; it < folderSizes.size() ; it++) {
 
@@ -432,31 +1186,67 @@ public class Main {
      * @param resultsLog Logs of the results
      * @throws IOException If some file was not to be found
      */
-    public void part2(String pathDq, Map<String,Set<String>> result, List<HashFunction> hyperplanes,
+    public void part2(String pathDq, SignatureBuckets result, List<HashFunction> hyperplanes,
                       StringBuilder resultsLog) throws IOException {
+        this.part2(pathDq, result, hyperplanes, probeBudget, resultsLog);
+    }
+
+    /**
+     * Executes part 2 task, also visiting the neighbouring buckets of the query
+     * @param pathDq The path of the query email
+     * @param result The subsets of dataset email
+     * @param hyperplanes The random hyperplanes
+     * @param probeBudget The maximal number of neighbouring buckets visited, 0 only visits the query bucket
+     * @param resultsLog Logs of the results
+     */
+    private void part2(String pathDq, SignatureBuckets result, List<HashFunction> hyperplanes, int probeBudget,
+                       StringBuilder resultsLog) {
+        this.part2(pathDq, new LshTable(hyperplanes, result), probeBudget, resultsLog);
+    }
+
+    /**
+     * Executes part 2 task on a hyperplanes table, whose oversized buckets may be split
+     * @param pathDq The path of the query email
+     * @param table The hyperplanes table
+     * @param probeBudget The maximal number of neighbouring buckets visited, 0 only visits the query bucket
+     * @param resultsLog Logs of the results
+     */
+    private void part2(String pathDq, LshTable table, int probeBudget, StringBuilder resultsLog) {
             try {
 
             String dqMail = Main.getEmailContent(pathDq);
-            String dqSignature = this.getEmailSignature(hyperplanes, dqMail);
+            long[] dqSignatures = this.getProbedSignatures(table.hyperplanes, dqMail, probeBudget);
+            int[] dqWordHashes = LshTable.wordHashes(Collections.singletonList(table), dqMail);
 
-            if(verbose) System.out.println("Dq signature is : " + dqSignature);
+            if(verbose) System.out.println("Dq signature is : " + Long.toBinaryString(dqSignatures[0]));
             List<String> listFileNames = new ArrayList<>();
-            List<Map<String, Integer>> datasets = new ArrayList<>();
-
-
-            if(result.containsKey(dqSignature)) {
-                for(String similarEmailPath : result.get(dqSignature)) {
-                    String fileContent = Files.toString(new File(similarEmailPath), Charsets.UTF_8);
-                    datasets.add(this.convert(fileContent));
+            List<SparseVector> datasets = new ArrayList<>();
+
+            for(long dqSignature : dqSignatures) {
+                long startTimer = System.nanoTime();
+                int[] similarEmails = table.get(dqSignature, dqWordHashes);
+                Metrics.record(Metrics.Stage.BUCKET_LOOKUP, startTimer);
+                Metrics.recordLookup(similarEmails);
+                if(similarEmails == null) {
+                    continue;
+                }
+                for(int similarEmail : similarEmails) {
+                    String similarEmailPath = this.documents.getPath(similarEmail);
+                    datasets.add(this.vectorStore.get(similarEmailPath));
                     listFileNames.add(similarEmailPath);
 
                     if(verbose) System.out.println(similarEmailPath);
                 }
+            }
 
-                int neighbourMessageIndex = (this.computeMinDistance(datasets, this.convert(dqMail), resultsLog));
-                String finalPathResult = listFileNames.get(neighbourMessageIndex);
+            Metrics.recordCandidates(datasets.size());
+            if(!datasets.isEmpty()) {
+                SparseVector dqVector = this.vectorStore.get(new File(pathDq).getAbsolutePath());
+                InvertedIndex.Neighbour neighbour = this.computeMinDistance(datasets, dqVector);
+                if(verbose) System.out.println("Minimum Distance is : " + neighbour.distance);
+                String finalPathResult = listFileNames.get(neighbour.index);
 
-                resultsLog.append(",").append(finalPathResult).append("\n");
+                resultsLog.append(neighbour.distance).append(",").append(finalPathResult).append("\n");
 
                 if(verbose) System.out.println("Final result : "  + finalPathResult);
             } else {
@@ -470,10 +1260,79 @@ public class Main {
     }
 
     /**
-     * Executes part 3 task
+     * Runs a batch of queries against hyperplanes tables on queryThreads threads
+     * @param listQueries The query emails
+     * @param tables The hyperplanes tables
+     * @param probeBudget The maximal number of neighbouring buckets visited per table
+     * @return The result of every query
+     * @throws Exception If some file was not to be found
+     */
+    private List<BatchQueryRunner.QueryResult> runBatch(List<File> listQueries, List<LshTable> tables,
+                                                        int probeBudget) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(queryThreads);
+        try {
+            return new BatchQueryRunner(this, this.documents, this.vectorStore, executor, probeBudget)
+                    .run(listQueries, tables);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs a batch of queries against hyperplanes tables on an executor, with the default probe budget
+     * @param listQueries The query emails
+     * @param tables The hyperplanes tables
+     * @param executor The executor running the queries
+     * @return The result of every query
+     * @throws Exception If some file was not to be found
+     */
+    List<BatchQueryRunner.QueryResult> runBatch(List<File> listQueries, List<LshTable> tables,
+                                                ExecutorService executor) throws Exception {
+        return new BatchQueryRunner(this, this.documents, this.vectorStore, executor, probeBudget)
+                .run(listQueries, tables);
+    }
+
+    /**
+     * Get the approximate distance of every query to its nearest email in one hyperplanes table
+     * @param listQueries The query emails
+     * @param table The hyperplanes table
+     * @param probeBudget The maximal number of neighbouring buckets visited, 0 only visits the query bucket
+     * @return The approximate distance of every query, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    private double[] getApproximateDistances(List<File> listQueries, LshTable table, int probeBudget) throws Exception {
+        double[] distances = new double[listQueries.size()];
+
+        if(queryThreads > 1) {
+            List<BatchQueryRunner.QueryResult> results =
+                    this.runBatch(listQueries, Collections.singletonList(table), probeBudget);
+            for(int i = 0; i < distances.length; i++) {
+                distances[i] = results.get(i).distance;
+            }
+        } else {
+            StringBuilder approximateResultsLog = new StringBuilder();
+            for(File query : listQueries) {
+                this.part2(query.getAbsolutePath(), table, probeBudget, approximateResultsLog);
+                if(verbose) System.out.println(approximateResultsLog);
+            }
+
+            String[] pairs = approximateResultsLog.toString().split("\n");
+            for(int i = 0; i < distances.length; i++) {
+                distances[i] = Double.parseDouble(pairs[i].split(",")[0]);
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Executes part 3 task : evaluates the approximate search with numberHyperplanes hyperplanes, then half as many
+     * down to 1, against the exact search. The exact distances are computed once and the collection is only loaded
+     * or built for numberHyperplanes hyperplanes : the fewer hyperplanes being its first ones, their collections
+     * are derived from its signatures. Oversized buckets are not split, so every configuration only measures its
+     * hyperplanes. The report is displayed and written into pathEvaluation.
      * @param pathQueries A path to the folder containing all the queries (usually queryFiles)
      * @param numberHyperplanes The number of hyperplanes you want to generate
-     * @param resultLog Logs of the results
+     * @param resultLog Logs of the exact results
      * @throws Exception If some file was not to be found
      */
     public void part3(String pathQueries, int numberHyperplanes, StringBuilder resultLog) throws Exception {
@@ -481,129 +1340,574 @@ public class Main {
         long startTimer = System.nanoTime();
 
         List<File> listQueries = getEmailsContent(pathQueries);
-        for(File query : listQueries) {
-            this.part1(query.getAbsolutePath(), resultLog);
-        }
-
+        double[] exactDistances = this.getExactDistances(listQueries);
         double totalDistance = 0;
-        for(String distance : resultLog.toString().split(",\n")) {
-            totalDistance += Double.parseDouble(distance);
+        for(double distance : exactDistances) {
+            resultLog.append(distance).append(",\n");
+            totalDistance += distance;
         }
-        Main.displayTimeNeeded(startTimer);
-        System.err.println("[INFO] Total Exact Distance : " + totalDistance);
+        EvaluationReport report = new EvaluationReport(listQueries.size(), totalDistance,
+                System.nanoTime() - startTimer);
+
+        startTimer = System.nanoTime();
+        List<HashFunction> allHyperplanes = this.constructHyperplanes(numberHyperplanes, 365836470);
+        SignatureBuckets allResult = this.getIndexedHyperplanesSubset(allHyperplanes, 365836470);
+        long indexTime = System.nanoTime() - startTimer;
 
         while(numberHyperplanes >= 1) {
 
-            System.err.println("[INFO] Results for " + numberHyperplanes + " hyperplanes");
-            StringBuilder approximateResultsLog = new StringBuilder();
-            List<HashFunction> hyperplanes = this.constructHyperplanes(numberHyperplanes, 365836470);
-            Map<String,Set<String>> result = this.getHyperplanesSubset(hyperplanes);
             startTimer = System.nanoTime();
-            for(File query : listQueries) {
-                this.part2(query.getAbsolutePath(), result, hyperplanes, approximateResultsLog);
-                if(verbose) System.out.println(approximateResultsLog);
-            }
-
-            double totalAppDistance = 0;
+            List<HashFunction> hyperplanes = new ArrayList<>(allHyperplanes.subList(0, numberHyperplanes));
+            SignatureBuckets result = numberHyperplanes == allHyperplanes.size()
+                    ? allResult : allResult.prefix(numberHyperplanes);
+            // Oversized buckets are not split : every row measures exactly numberHyperplanes hyperplanes
+            LshTable table = new LshTable(hyperplanes, this.collapseNearDuplicates(result));
+            this.builtTables.add(table);
+            indexTime += System.nanoTime() - startTimer;
 
-            for(String pairs : approximateResultsLog.toString().split("\n")) {
-                String[] pair = pairs.split(",");
-                totalAppDistance += Double.parseDouble(pair[0]);
+            startTimer = System.nanoTime();
+            double[] approximateDistances = this.getApproximateDistances(listQueries, table, 0);
+            report.add(this.evaluate(numberHyperplanes, 0, exactDistances, approximateDistances,
+                    System.nanoTime() - startTimer, 0));
+
+            if(probeBudget > 0) {
+                long probesBefore = this.probes.get();
+                startTimer = System.nanoTime();
+                double[] probedDistances = this.getApproximateDistances(listQueries, table, probeBudget);
+                report.add(this.evaluate(numberHyperplanes, probeBudget, exactDistances, probedDistances,
+                        System.nanoTime() - startTimer, (double) (this.probes.get() - probesBefore) / listQueries.size()));
             }
 
-
-
-            Main.displayTimeNeeded(startTimer);
-            System.err.println("[INFO] Total Approximate Distance with "+ numberHyperplanes + " hyperplanes : " + totalAppDistance);
-            System.err.println("[INFO] Error with  "+ numberHyperplanes + " hyperplanes is : " + this.calculateAverageError(totalDistance, totalAppDistance, 100) + " %");
-
             if (numberHyperplanes == 1)
                 numberHyperplanes = 0;
             else
                 numberHyperplanes /= 2;
 
         }
+        report.setIndexElapsedNanos(indexTime);
+        report.display();
+        try {
+            report.write(new File(pathEvaluation));
+            System.err.println("[INFO] Evaluation written to " + pathEvaluation);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        this.vectorStore.displayStatistics();
 
     }
 
     /**
-     * Executes part 4 task
-     * @param pathQueries A path to the folder containing all the queries (usually pathDataset6)
-     * @throws Exception If some file was not to be found
+     * Compares the approximate distances of a configuration with the exact ones
+     * @param numberHyperplanes The number of hyperplanes of the configuration
+     * @param probeBudget The maximal number of neighbouring buckets visited, 0 without multi-probe
+     * @param exactDistances The exact distance of every query
+     * @param approximateDistances The approximate distance of every query
+     * @param elapsedNanos The time spent on the approximate search
+     * @param probesPerQuery The average number of neighbouring buckets visited per query
+     * @return The results of the configuration
      */
-    public void part4(String pathQueries) throws Exception {
+    private EvaluationReport.Configuration evaluate(int numberHyperplanes, int probeBudget, double[] exactDistances,
+                                                    double[] approximateDistances, long elapsedNanos,
+                                                    double probesPerQuery) {
+        double totalDistance = 0;
+        double totalAppDistance = 0;
+        for(int i = 0; i < exactDistances.length; i++) {
+            totalDistance += exactDistances[i];
+            totalAppDistance += approximateDistances[i];
+        }
+        return new EvaluationReport.Configuration(numberHyperplanes, probeBudget, totalAppDistance,
+                this.calculateAverageError(totalDistance, totalAppDistance, exactDistances.length),
+                Main.calculateRecall(exactDistances, approximateDistances), elapsedNanos, probesPerQuery);
+    }
+
+    /**
+     * Builds the hyperplanes tables used by part 4
+     * @return The tables
+     */
+    private List<LshTable> getPart4Tables() {
+        return this.getLshIndex(part4Tables, part4Hyperplanes).getTables();
+    }
+
+    /**
+     * Builds an index of L tables of K hyperplanes, loading the tables saved on disk
+     * and building all the other ones in a single pass over the datasets
+     * @param numberTables L, the number of tables
+     * @param numberHyperplanes K, the number of hyperplanes of every table, at most 64
+     * @return The index
+     */
+    LshIndex getLshIndex(int numberTables, int numberHyperplanes) {
         long startTimer = System.nanoTime();
         System.err.println("[INFO] Starting to build hyperplanes indexes...");
-        List<File> listQueries = getEmailsContent(pathQueries);
-        List<HashFunction> hyperplanes1 = this.constructHyperplanes(16, 264738391);
-        List<HashFunction> hyperplanes2 = this.constructHyperplanes(16, 395847264);
-        List<HashFunction> hyperplanes3 = this.constructHyperplanes(16, 950284883);
-        List<HashFunction> hyperplanes4 = this.constructHyperplanes(16, 673753848);
+        int[] seeds = Main.getTableSeeds(numberTables);
+        List<List<HashFunction>> hyperplanes = new ArrayList<>();
+        for(int seed : seeds) {
+            hyperplanes.add(this.constructHyperplanes(numberHyperplanes, seed));
+        }
         Main.displayTimeNeeded(startTimer);
 
         startTimer = System.nanoTime();
         System.err.println("[INFO] Starting to fulfill hyperplanes indexes...");
-        Map<String,Set<String>> result1 = this.getHyperplanesSubset(hyperplanes1);
-        Map<String,Set<String>> result2 = this.getHyperplanesSubset(hyperplanes2);
-        Map<String,Set<String>> result3 = this.getHyperplanesSubset(hyperplanes3);
-        Map<String,Set<String>> result4 = this.getHyperplanesSubset(hyperplanes4);
+        List<SignatureBuckets> results = this.getIndexedHyperplanesSubsets(hyperplanes, seeds);
         Main.displayTimeNeeded(startTimer);
 
-        // Spam As Genuine = Tagged as genuine but it actually was a spam message
-        int spamAsSpam = 0;
-        int genuineAsGenuine = 0;
-        int spamAsGenuine = 0;
-        int genuineAsSpam = 0;
+        return this.newLshIndex(hyperplanes, seeds, results);
+    }
 
+    /**
+     * Builds the part 4 tables over one shard of the datasets, for a ShardWorker : email p of the datasets belongs
+     * to shard p % numberShards. The tables are not saved into pathIndexes, and the emails of the shard are packed
+     * into their own corpus files so the workers of several shards never write the same file.
+     * @param shard The index of the shard, from 0 to numberShards - 1
+     * @param numberShards The number of shards
+     * @return The index of the emails of the shard
+     * @throws Exception If some file was not to be found
+     */
+    LshIndex getShardIndex(int shard, int numberShards) throws Exception {
+        long startTimer = System.nanoTime();
+        System.err.println("[INFO] Starting to build the hyperplanes indexes of shard " + shard + "/" + numberShards + "...");
+        List<List<File>> files = new ArrayList<>();
+        int position = 0;
+        for(List<File> folder : Main.getDatasetsFiles()) {
+            List<File> shardFolder = new ArrayList<>();
+            for(File file : folder) {
+                if(position++ % numberShards == shard) {
+                    shardFolder.add(file);
+                }
+            }
+            files.add(shardFolder);
+        }
+        this.corpusName = "corpus-" + (debug ? "debug" : "full") + "-shard" + shard + "of" + numberShards;
 
-        for(File query : listQueries) {
-            startTimer = System.nanoTime();
+        int[] seeds = Main.getTableSeeds(part4Tables);
+        List<List<HashFunction>> hyperplanes = new ArrayList<>();
+        for(int seed : seeds) {
+            hyperplanes.add(this.constructHyperplanes(part4Hyperplanes, seed));
+        }
+        // The workers of all the shards build at the same time and share the processors
+        List<SignatureBuckets> results = this.getHyperplanesSubsets(hyperplanes, files,
+                Math.max(1, buildThreads / numberShards));
+        LshIndex index = this.newLshIndex(hyperplanes, seeds, results);
+        Main.displayTimeNeeded(startTimer);
+        return index;
+    }
+
+    /**
+     * Builds an index from the full subset collections of its tables, collapsing the near-duplicates
+     * and splitting the oversized buckets
+     * @param hyperplanes The hyperplanes of every table
+     * @param seeds The seed used to construct the hyperplanes of every table
+     * @param results The full subset collection of every table
+     * @return The index
+     */
+    private LshIndex newLshIndex(List<List<HashFunction>> hyperplanes, int[] seeds, List<SignatureBuckets> results) {
+        List<LshTable> tables = new ArrayList<>();
+        for(int t = 0; t < hyperplanes.size(); t++) {
+            SignatureBuckets result = this.collapseNearDuplicates(results.get(t));
+            tables.add(this.splitOversizedBuckets(new LshTable(hyperplanes.get(t), result), t));
+        }
+        this.builtTables.addAll(tables);
+        return new LshIndex(tables, seeds, new MultiTableQueryEngine(this, this.documents, this.vectorStore,
+                probeBudget));
+    }
 
-            String path = query.getAbsolutePath();
-            boolean isSpam = path.contains("spam");
-            StringBuilder resultLog = new StringBuilder();
-            double distance = Double.MAX_VALUE;
-            String pathFile = "";
+    /**
+     * Get a subset collection where every near-duplicate email is replaced by its representative.
+     * The emails registered since the last call are examined first, in order of their ids.
+     * @param collection The subset collection
+     * @return The collection without near-duplicates, the collection itself when collapseDuplicates is disabled
+     */
+    private SignatureBuckets collapseNearDuplicates(SignatureBuckets collection) {
+        if(!collapseDuplicates) {
+            return collection;
+        }
+        int numberDuplicates;
+        try {
+            numberDuplicates = this.examineNearDuplicates();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return collection;
+        }
+        if(verbose) System.err.println("[INFO] " + numberDuplicates + " near-duplicate emails collapsed");
+
+        long[] signatures = collection.signatures();
+        SignatureBuckets collapsed = new SignatureBuckets(signatures.length);
+        Set<Integer> bucket = new LinkedHashSet<>();
+        for(long signature : signatures) {
+            bucket.clear();
+            for(int emailId : collection.get(signature)) {
+                bucket.add(this.documents.getRepresentative(emailId));
+            }
+            for(int emailId : bucket) {
+                collapsed.add(signature, emailId);
+            }
+        }
+        collapsed.compact();
+        return collapsed;
+    }
 
-            this.part2(path, result1, hyperplanes1, resultLog);
-            this.part2(path, result2, hyperplanes2, resultLog);
-            this.part2(path, result3, hyperplanes3, resultLog);
-            this.part2(path, result4, hyperplanes4, resultLog);
+    /**
+     * Collapses every email registered since the last call that is a near-duplicate of an earlier one
+     * @return The total number of emails collapsed
+     * @throws IOException If an email could not be read
+     */
+    private synchronized int examineNearDuplicates() throws IOException {
+        int from = this.examinedEmails;
+        int to = this.documents.size();
+        if(from == to) {
+            return this.nearDuplicates.getNumberDuplicates();
+        }
 
-            for(String pairs : resultLog.toString().split("\n")) {
+        // The groups of the whole datasets are saved with the index, and restored while the datasets did not change
+        File file = new File(this.indexDirectory, this.corpusName + ".simhash");
+        List<File> emails = new ArrayList<>();
+        for(int emailId = from; emailId < to; emailId++) {
+            emails.add(new File(this.documents.getPath(emailId)));
+        }
+        MappedCorpus.Stamp stamp = MappedCorpus.Stamp.of(Collections.singletonList(emails));
+        int[] representatives = from == 0 ? this.nearDuplicates.restore(file, stamp) : null;
+        if(representatives != null) {
+            for(int emailId = 0; emailId < to; emailId++) {
+                if(representatives[emailId] != emailId) {
+                    this.documents.collapse(emailId, representatives[emailId]);
+                }
+            }
+            this.examinedEmails = to;
+            return this.nearDuplicates.getNumberDuplicates();
+        }
 
-                String[] pair = pairs.split(",");
+        long[] fingerprints = new long[to - from];
+        representatives = new int[to - from];
+        for(; this.examinedEmails < to; this.examinedEmails++) {
+            int emailId = this.examinedEmails;
+            fingerprints[emailId - from] = this.nearDuplicates.fingerprint(
+                    Main.getEmailContent(this.documents.getPath(emailId)));
+            int representative = this.nearDuplicates.add(emailId, fingerprints[emailId - from],
+                    id -> this.vectorStore.get(this.documents.getPath(id)));
+            representatives[emailId - from] = representative;
+            if(representative != emailId) {
+                this.documents.collapse(emailId, representative);
+            }
+        }
+        if(from == 0) {
+            try {
+                this.nearDuplicates.save(file, stamp, fingerprints, representatives);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return this.nearDuplicates.getNumberDuplicates();
+    }
 
-                double tmpDistance = Double.parseDouble(pair[0]);
-                if(tmpDistance < distance) {
-                    distance = tmpDistance;
-                    pathFile = pair[1];
+    /**
+     * Splits the buckets of a table holding more than maxBucketSize emails with extra hyperplanes,
+     * then splits again the children still too big, up to maxSplitDepth times
+     * @param table The hyperplanes table
+     * @param salt Makes the extra hyperplanes differ from one table of an index to another
+     * @return The table with its oversized buckets split, the table itself when none is oversized
+     */
+    LshTable splitOversizedBuckets(LshTable table, int salt) {
+        if(maxBucketSize <= 0) {
+            return table;
+        }
+        Map<Long, BucketSplit> splits = new HashMap<>();
+        int numberLeaves = 0;
+        try {
+            for(long signature : table.buckets.signatures()) {
+                int[] bucket = table.buckets.get(signature);
+                if(bucket != null && bucket.length > maxBucketSize) {
+                    BucketSplit split = this.splitBucket(bucket, salt, 0);
+                    splits.put(signature, split);
+                    numberLeaves += split.numberLeaves();
                 }
             }
-            boolean isSpamDetected = pathFile.contains("spam");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return table;
+        }
+        if(splits.isEmpty()) {
+            return table;
+        }
+        if(verbose) System.err.println("[INFO] Split " + splits.size() + " oversized buckets of "
+                + table.hyperplanes.size() + " hyperplanes into " + numberLeaves + " buckets");
+        return new LshTable(table.hyperplanes, table.buckets, splits);
+    }
 
-            if(isSpam) {
-                if(isSpamDetected)
-                    spamAsSpam++;
-                else
-                    spamAsGenuine++;
-            } else {
-                if(isSpamDetected)
-                    genuineAsSpam++;
-                else
-                    genuineAsGenuine++;
+    /**
+     * Splits a bucket with splitHyperplanes extra hyperplanes, the same for every bucket of a depth
+     * @param bucket The ids of the emails of the bucket
+     * @param salt Makes the extra hyperplanes differ from one table of an index to another
+     * @param depth The depth of the bucket in the tree, 0 for a bucket of the table
+     * @return The split bucket
+     * @throws IOException If an email could not be read
+     */
+    private BucketSplit splitBucket(int[] bucket, int salt, int depth) throws IOException {
+        List<HashFunction> hyperplanes = this.constructHyperplanes(splitHyperplanes, splitSeed + 1000 * salt + depth);
+        SignatureBuckets children = new SignatureBuckets();
+        for(int emailId : bucket) {
+            children.add(this.getEmailSignature(hyperplanes, emailId), emailId);
+        }
+        children.compact();
+
+        Map<Long, BucketSplit> splits = new HashMap<>();
+        if(depth + 1 < maxSplitDepth) {
+            for(long signature : children.signatures()) {
+                int[] child = children.get(signature);
+                if(child != null && child.length > maxBucketSize) {
+                    splits.put(signature, this.splitBucket(child, salt, depth + 1));
+                }
             }
+        }
+        return new BucketSplit(hyperplanes, children, splits);
+    }
 
-            if(verbose) System.out.println(resultLog);
-            Main.displayTimeNeeded(startTimer);
+    /**
+     * Get the signature of an indexed email, tokenizing it from the packed corpus when it was packed
+     * @param hyperplanes The hyperplanes creating the signature
+     * @param emailId The id of the email
+     * @return The signature of the email, bit i being set when under hyperplane i
+     * @throws IOException If the email could not be read
+     */
+    private long getEmailSignature(List<HashFunction> hyperplanes, int emailId) throws IOException {
+        String path = this.documents.getPath(emailId);
+        MappedCorpus corpus = this.corpus;
+        Integer index = corpus == null ? null : corpus.indexOf(path);
+        if(index != null) {
+            MappedCorpus.Tokenizer words = corpus.tokenize(index);
+            return ProjectionEngine.signature(hyperplanes, words.wordHashes, words.length);
+        }
+        return ProjectionEngine.signature(hyperplanes, Main.getEmailContent(path));
+    }
+
+    /**
+     * Get the seeds of the hyperplanes of L tables : tableSeeds first, then seeds drawn from the first one
+     * @param numberTables L, the number of tables
+     * @return The seeds
+     */
+    private static int[] getTableSeeds(int numberTables) {
+        int[] seeds = Arrays.copyOf(tableSeeds, numberTables);
+        Random random = new Random(tableSeeds[0]);
+        for(int t = tableSeeds.length; t < numberTables; t++) {
+            seeds[t] = random.nextInt(Integer.MAX_VALUE);
+        }
+        return seeds;
+    }
+
+    /**
+     * Runs queries against all the tables of an index, on queryThreads threads
+     * @param listQueries The query emails
+     * @param tables The tables of the index
+     * @return The result of every query, in the order of the queries
+     * @throws Exception If some file was not to be found
+     */
+    private List<BatchQueryRunner.QueryResult> queryIndex(List<File> listQueries, List<LshTable> tables)
+            throws Exception {
+        if(queryThreads > 1) {
+            return this.runBatch(listQueries, tables, probeBudget);
+        }
+        MultiTableQueryEngine engine = new MultiTableQueryEngine(this, this.documents, this.vectorStore, probeBudget);
+        List<BatchQueryRunner.QueryResult> results = new ArrayList<>();
+        for(File query : listQueries) {
+            results.add(engine.query(query, tables));
+        }
+        return results;
+    }
+
+    /**
+     * Sweeps the number of tables L and of hyperplanes K over a set of held-out queries, and reports for every
+     * setting its recall and error against part1 exact search, its memory footprint and its throughput.
+     * The fastest setting reaching the target recall is given last.
+     * @param pathQueries A path to the folder containing the held-out queries (usually queryFiles)
+     * @param numbersTables The values of L to try
+     * @param numbersHyperplanes The values of K to try
+     * @param targetRecall The minimal recall wanted, between 0 and 1
+     * @throws Exception If some file was not to be found
+     */
+    public void autoTune(String pathQueries, int[] numbersTables, int[] numbersHyperplanes, double targetRecall)
+            throws Exception {
+
+        List<File> listQueries = getEmailsContent(pathQueries);
+        double[] exactDistances = this.getExactDistances(listQueries);
+        double totalDistance = 0;
+        for(double distance : exactDistances) {
+            totalDistance += distance;
+        }
+
+        String best = null;
+        double bestThroughput = 0;
+        for(int numberTables : numbersTables) {
+            for(int numberHyperplanes : numbersHyperplanes) {
+                LshIndex index = this.getLshIndex(numberTables, numberHyperplanes);
+
+                long startTimer = System.nanoTime();
+                List<BatchQueryRunner.QueryResult> results = this.queryIndex(listQueries, index.getTables());
+                double throughput = listQueries.size() / ((System.nanoTime() - startTimer) / 1e9);
+
+                double[] approximateDistances = new double[results.size()];
+                double totalAppDistance = 0;
+                for(int i = 0; i < approximateDistances.length; i++) {
+                    approximateDistances[i] = results.get(i).distance;
+                    totalAppDistance += approximateDistances[i];
+                }
+                double recall = Main.calculateRecall(exactDistances, approximateDistances);
+                String setting = "L = " + numberTables + ", K = " + numberHyperplanes;
+
+                System.err.println("[INFO] " + setting + " : recall = " + recall + ", mean distance error = "
+                        + this.calculateAverageError(totalDistance, totalAppDistance, listQueries.size()) + ", memory = "
+                        + (index.memoryBytes() / (1024.0 * 1024.0)) + " MB, throughput = " + throughput + " queries/s");
+                if(recall >= targetRecall && throughput > bestThroughput) {
+                    best = setting;
+                    bestThroughput = throughput;
+                }
+            }
+        }
+        System.err.println("[INFO] Fastest setting with a recall of at least " + targetRecall + " : "
+                + (best == null ? "none" : best));
+    }
+
+    /**
+     * Compares the part 4 index split into shards, every shard in its own worker process, for several numbers
+     * of shards : reports the time until all the workers are built, the throughput of the scatter-gather queries
+     * and their recall against part1 exact search.
+     * @param pathQueries A path to the folder containing the queries (usually queryFiles)
+     * @param numbersShards The numbers of shards to try
+     * @throws Exception If some file was not to be found or a worker failed
+     */
+    public void shardScaling(String pathQueries, int[] numbersShards) throws Exception {
+        List<File> listQueries = getEmailsContent(pathQueries);
+        double[] exactDistances = this.getExactDistances(listQueries);
+
+        for(int numberShards : numbersShards) {
+            long startTimer = System.nanoTime();
+            try(ShardCoordinator coordinator = new ShardCoordinator(numberShards)) {
+                long buildTime = System.nanoTime() - startTimer;
+
+                startTimer = System.nanoTime();
+                List<BatchQueryRunner.QueryResult> results = coordinator.query(listQueries, queryThreads);
+                double throughput = listQueries.size() / ((System.nanoTime() - startTimer) / 1e9);
+
+                double[] approximateDistances = new double[results.size()];
+                for(int i = 0; i < approximateDistances.length; i++) {
+                    approximateDistances[i] = results.get(i).distance;
+                }
+                System.err.println("[INFO] " + numberShards + " shards : built in " + (buildTime / 1000000)
+                        + " ms, recall = " + Main.calculateRecall(exactDistances, approximateDistances)
+                        + ", throughput = " + throughput + " queries/s");
+            }
+        }
+    }
+
+    /**
+     * Builds the part 4 tables into a live index kept up to date with a drop directory :
+     * emails dropped there are indexed as they arrive, without rebuilding the tables
+     * @param pathDrop A path to the drop directory (usually pathDrop)
+     * @return The watcher of the drop directory. Its getIndex is the live index, to be given to part4
+     *         or startQueryServer. Must be closed to stop watching.
+     * @throws IOException If the drop directory could not be watched
+     */
+    public DropDirectoryWatcher startLiveIndex(String pathDrop) throws IOException {
+        LiveIndex index = new LiveIndex(this, this.documents, this.vectorStore, this.getPart4Tables());
+        DropDirectoryWatcher watcher = new DropDirectoryWatcher(index, new File(pathDrop), compactionMinutes,
+                TimeUnit.MINUTES);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Builds the part 4 tables once and starts classifying the emails posted to a local HTTP server,
+     * by a vote of their knnNeighbours nearest emails
+     * @param port The port of the server, 0 for any free port
+     * @return The started server. Must be closed to stop it.
+     * @throws IOException If the port could not be bound
+     */
+    public QueryServer startQueryServer(int port) throws IOException {
+        return this.startQueryServer(port, this.getLshIndex(part4Tables, part4Hyperplanes)::getTables);
+    }
+
+    /**
+     * Starts classifying the emails posted to a local HTTP server against a live index,
+     * so the emails dropped since it started are found too
+     * @param port The port of the server, 0 for any free port
+     * @param liveIndex The live index given by startLiveIndex
+     * @return The started server. Must be closed to stop it.
+     * @throws IOException If the port could not be bound
+     */
+    public QueryServer startQueryServer(int port, LiveIndex liveIndex) throws IOException {
+        return this.startQueryServer(port, liveIndex::getTables);
+    }
+
+    private QueryServer startQueryServer(int port, Supplier<List<LshTable>> tables) throws IOException {
+        // The 1-nearest rule must score every candidate
+        KnnClassifier classifier = new KnnClassifier(this.documents, knnNeighbours, knnNeighbours > 1 ? knnQuorum : 0,
+                knnThreshold, knnWeighted);
+        QueryServer server = new QueryServer(this, this.documents, this.vectorStore, tables, classifier,
+                probeBudget, port);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Executes part 4 task
+     * @param pathQueries A path to the folder containing all the queries (usually pathDataset6)
+     * @throws Exception If some file was not to be found
+     */
+    public void part4(String pathQueries) throws Exception {
+        this.part4(pathQueries, this.getPart4Tables());
+    }
+
+    /**
+     * Executes part 4 task against a live index, so the emails dropped since it started are found too
+     * @param pathQueries A path to the folder containing all the queries (usually pathDataset6)
+     * @param liveIndex The live index given by startLiveIndex
+     * @throws Exception If some file was not to be found
+     */
+    public void part4(String pathQueries, LiveIndex liveIndex) throws Exception {
+        this.part4(pathQueries, liveIndex.getTables());
+    }
+
+    private void part4(String pathQueries, List<LshTable> tables) throws Exception {
+        List<File> listQueries = getEmailsContent(pathQueries);
+
+        SpamTally tally = new SpamTally(knnNeighbours > 1 ? knnNeighbours + "-nearest" : "1-nearest");
+        long queriesTimer = System.nanoTime();
+
+        if(knnNeighbours > 1) {
+            KnnClassifier classifier = new KnnClassifier(this.documents, knnNeighbours, knnQuorum, knnThreshold,
+                    knnWeighted);
+            long numberScored = 0;
+            ExecutorService executor = Executors.newFixedThreadPool(queryThreads);
+            try {
+                for(BatchQueryRunner.Classification classification : new BatchQueryRunner(this, this.documents,
+                        this.vectorStore, executor, probeBudget).classify(listQueries, tables, classifier)) {
+                    tally.record(Main.isSpamEmail(new File(classification.queryPath)), classification.spam);
+                    numberScored += classification.numberScored;
+                    if(verbose) {
+                        for(KnnClassifier.Neighbour neighbour : classification.neighbours) {
+                            System.out.println(neighbour.distance + "," + this.documents.getPath(neighbour.emailId));
+                        }
+                    }
+                    Main.displayDuration(classification.elapsedNanos);
+                }
+            } finally {
+                executor.shutdown();
+            }
+            System.err.println("[INFO] Candidates scored per query : " + ((double) numberScored / listQueries.size()));
+        } else {
+            List<BatchQueryRunner.QueryResult> results = this.queryIndex(listQueries, tables);
+
+            long numberCandidates = 0;
+            for(BatchQueryRunner.QueryResult queryResult : results) {
+                boolean isSpamDetected = queryResult.neighbourId >= 0 && this.documents.isSpam(queryResult.neighbourId);
+                tally.record(Main.isSpamEmail(new File(queryResult.queryPath)), isSpamDetected);
+                numberCandidates += queryResult.numberCandidates;
+                if(verbose) System.out.println(queryResult.distance + "," + queryResult.neighbourPath);
+                Main.displayDuration(queryResult.elapsedNanos);
+            }
+            System.err.println("[INFO] Candidates scored per query : " + ((double) numberCandidates / listQueries.size()));
         }
 
-        int sumQueries = spamAsGenuine + spamAsSpam + genuineAsGenuine + genuineAsSpam;
-        System.err.println("[INFO] 1-nearest Strategy Results - If no messages found, then tagged as Genuine :");
-        System.err.println("------      Spam tagged as spam : " + ((double)spamAsSpam / sumQueries));
-        System.err.println("------      Spam tagged as genuine : " + ((double)spamAsGenuine / sumQueries));
-        System.err.println("------      Genuine tagged as genuine : " + ((double)genuineAsGenuine / sumQueries));
-        System.err.println("------      Genuine tagged as spam : " + ((double)genuineAsSpam / sumQueries));
+        Main.displayThroughput(listQueries.size(), queriesTimer);
+        tally.display();
+        this.vectorStore.displayStatistics();
 
     }
 
@@ -0,0 +1,471 @@
+package Main;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The emails of the datasets packed into a few memory-mapped segment files, tokenized directly from their bytes.
+ *
+ * Layout of a segment file (big endian) :
+ * - header : magic, version, number of emails of the whole corpus, total size, last modification and hash of the
+ *   ordered paths of the packed files (to detect a stale corpus), number of emails in the segment
+ * - emails : for every email, its absolute path and its content as length prefixed UTF-8 bytes
+ *
+ * Tokenizing gives the same words as email.substring(9).split(" ") but without creating a String per word :
+ * words are hashed over their bytes and looked up in a per-thread cache of the term dictionary.
+ */
+class MappedCorpus {
+
+    private final static int MAGIC = 0x4C534843;
+    private final static int VERSION = 2;
+    private final static int HEADER_SIZE = 40;
+
+    private final ThreadLocal<Tokenizer> tokenizers;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> indexes = new HashMap<>();
+    /** Segment, position and length of the content of every email */
+    private int[] emailSegments = new int[1024];
+    private int[] emailOffsets = new int[1024];
+    private int[] emailLengths = new int[1024];
+
+    /**
+     * The stamp of a list of emails : a packed corpus is stale when the stamp of the datasets changed
+     */
+    static class Stamp {
+        final int numberEmails;
+        final long totalBytes;
+        final long lastModified;
+        /** Emails are packed in the order of the datasets, which gives their ids */
+        final long pathsHash;
+
+        Stamp(int numberEmails, long totalBytes, long lastModified, long pathsHash) {
+            this.numberEmails = numberEmails;
+            this.totalBytes = totalBytes;
+            this.lastModified = lastModified;
+            this.pathsHash = pathsHash;
+        }
+
+        static Stamp of(List<List<File>> files) {
+            int numberEmails = 0;
+            long totalBytes = 0;
+            long lastModified = 0;
+            long pathsHash = 0;
+            for(List<File> folder : files) {
+                for(File email : folder) {
+                    numberEmails++;
+                    totalBytes += email.length();
+                    lastModified = Math.max(lastModified, email.lastModified());
+                    pathsHash = 31 * pathsHash + email.getAbsolutePath().hashCode();
+                }
+            }
+            return new Stamp(numberEmails, totalBytes, lastModified, pathsHash);
+        }
+
+        /**
+         * @param other Another stamp
+         * @return True if both stamps describe the same emails
+         */
+        boolean sameAs(Stamp other) {
+            return this.numberEmails == other.numberEmails && this.totalBytes == other.totalBytes
+                    && this.lastModified == other.lastModified && this.pathsHash == other.pathsHash;
+        }
+    }
+
+    private MappedCorpus(TermDictionary dictionary) {
+        this.tokenizers = ThreadLocal.withInitial(() -> new Tokenizer(dictionary));
+    }
+
+    /**
+     * Get the packed corpus of the datasets, packing them again if the segment files are missing or stale
+     * @param directory The directory of the segment files
+     * @param name The name of the corpus, segment files are named name.seg0, name.seg1...
+     * @param files The emails of the datasets, grouped by folder
+     * @param segmentBytes The maximal size of a segment file
+     * @param dictionary The dictionary giving the term ids of the words
+     * @return The packed corpus
+     * @throws IOException File issues
+     */
+    static MappedCorpus openOrPack(File directory, String name, List<List<File>> files, long segmentBytes,
+                                   TermDictionary dictionary) throws IOException {
+        Stamp stamp = Stamp.of(files);
+        File first = new File(directory, name + ".seg0");
+        if(first.exists()) {
+            try {
+                MappedCorpus corpus = MappedCorpus.open(directory, name, stamp, dictionary);
+                if(corpus != null) {
+                    return corpus;
+                }
+            } catch(IOException e) {
+                System.err.println("[INFO] Unreadable corpus " + first.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+        System.err.println("[INFO] Packing " + stamp.numberEmails + " emails into " + first.getPath() + "...");
+        MappedCorpus.pack(directory, name, files, stamp, segmentBytes);
+        return MappedCorpus.open(directory, name, stamp, dictionary);
+    }
+
+    /**
+     * Writes the emails into segment files
+     * @param directory The directory of the segment files
+     * @param name The name of the corpus
+     * @param files The emails, grouped by folder
+     * @param stamp The stamp of the emails
+     * @param segmentBytes The maximal size of a segment file
+     * @throws IOException File issues
+     */
+    private static void pack(File directory, String name, List<List<File>> files, Stamp stamp, long segmentBytes)
+            throws IOException {
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+
+        int segment = 0;
+        DataOutputStream out = null;
+        long segmentSize = 0;
+        int segmentEmails = 0;
+        try {
+            for(List<File> folder : files) {
+                for(File email : folder) {
+                    byte[] path = email.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+                    byte[] content = java.nio.file.Files.readAllBytes(email.toPath());
+                    long entrySize = 8L + path.length + content.length;
+
+                    if(out == null || (segmentEmails > 0 && segmentSize + entrySize > segmentBytes)) {
+                        if(out != null) {
+                            MappedCorpus.closeSegment(out, new File(directory, name + ".seg" + segment), segmentEmails);
+                            segment++;
+                        }
+                        out = MappedCorpus.openSegment(new File(directory, name + ".seg" + segment), stamp);
+                        segmentSize = HEADER_SIZE;
+                        segmentEmails = 0;
+                    }
+                    out.writeInt(path.length);
+                    out.write(path);
+                    out.writeInt(content.length);
+                    out.write(content);
+                    segmentSize += entrySize;
+                    segmentEmails++;
+                }
+            }
+            if(out == null) {
+                out = MappedCorpus.openSegment(new File(directory, name + ".seg" + segment), stamp);
+            }
+            MappedCorpus.closeSegment(out, new File(directory, name + ".seg" + segment), segmentEmails);
+            out = null;
+        } finally {
+            if(out != null) {
+                out.close();
+            }
+        }
+
+        // Remove the segments left by a bigger corpus
+        File stale = new File(directory, name + ".seg" + (++segment));
+        while(stale.exists() && stale.delete()) {
+            stale = new File(directory, name + ".seg" + (++segment));
+        }
+    }
+
+    private static DataOutputStream openSegment(File file, Stamp stamp) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(stamp.numberEmails);
+        out.writeLong(stamp.totalBytes);
+        out.writeLong(stamp.lastModified);
+        out.writeLong(stamp.pathsHash);
+        out.writeInt(0);
+        return out;
+    }
+
+    private static void closeSegment(DataOutputStream out, File file, int segmentEmails) throws IOException {
+        out.close();
+        try(RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+            segment.seek(HEADER_SIZE - 4);
+            segment.writeInt(segmentEmails);
+        }
+    }
+
+    /**
+     * Memory-maps the segment files of a corpus
+     * @param directory The directory of the segment files
+     * @param name The name of the corpus
+     * @param stamp The expected stamp
+     * @param dictionary The dictionary giving the term ids of the words
+     * @return The corpus, null if it is stale
+     * @throws IOException If a segment could not be read
+     */
+    private static MappedCorpus open(File directory, String name, Stamp stamp, TermDictionary dictionary)
+            throws IOException {
+        MappedCorpus corpus = new MappedCorpus(dictionary);
+        File file = new File(directory, name + ".seg0");
+        for(int segment = 0; file.exists(); file = new File(directory, name + ".seg" + (++segment))) {
+            MappedByteBuffer buffer;
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a valid corpus segment");
+            }
+            Stamp segmentStamp = new Stamp(buffer.getInt(8), buffer.getLong(12), buffer.getLong(20), buffer.getLong(28));
+            if(!segmentStamp.sameAs(stamp)) {
+                return null;
+            }
+
+            int position = HEADER_SIZE;
+            int segmentEmails = buffer.getInt(HEADER_SIZE - 4);
+            for(int i = 0; i < segmentEmails; i++) {
+                byte[] path = new byte[buffer.getInt(position)];
+                for(int j = 0; j < path.length; j++) {
+                    path[j] = buffer.get(position + 4 + j);
+                }
+                position += 4 + path.length;
+                int length = buffer.getInt(position);
+                corpus.addEmail(new String(path, StandardCharsets.UTF_8), segment, position + 4, length);
+                position += 4 + length;
+            }
+            corpus.segments.add(buffer);
+        }
+        return corpus.size() == stamp.numberEmails ? corpus : null;
+    }
+
+    private void addEmail(String path, int segment, int offset, int length) {
+        int index = this.paths.size();
+        if(index == this.emailOffsets.length) {
+            this.emailSegments = Arrays.copyOf(this.emailSegments, index * 2);
+            this.emailOffsets = Arrays.copyOf(this.emailOffsets, index * 2);
+            this.emailLengths = Arrays.copyOf(this.emailLengths, index * 2);
+        }
+        this.emailSegments[index] = segment;
+        this.emailOffsets[index] = offset;
+        this.emailLengths[index] = length;
+        this.paths.add(path);
+        this.indexes.put(path, index);
+    }
+
+    /**
+     * @return The number of emails in the corpus
+     */
+    int size() {
+        return this.paths.size();
+    }
+
+    /**
+     * @param index The position of an email in the corpus
+     * @return The absolute path of the email
+     */
+    String getPath(int index) {
+        return this.paths.get(index);
+    }
+
+    /**
+     * @param path The absolute path of an email
+     * @return The position of the email in the corpus, null if it is not in the corpus
+     */
+    Integer indexOf(String path) {
+        return this.indexes.get(path);
+    }
+
+    /**
+     * Tokenizes an email of the corpus with the tokenizer of the current thread.
+     * The words are only valid until the next call from the same thread.
+     * @param index The position of the email in the corpus
+     * @return The tokenizer holding the term ids and word hashes of the email
+     */
+    Tokenizer tokenize(int index) {
+        Tokenizer tokenizer = this.tokenizers.get();
+        tokenizer.tokenize(this.segments.get(this.emailSegments[index]), this.emailOffsets[index],
+                this.emailLengths[index]);
+        return tokenizer;
+    }
+
+    /**
+     * @param index The position of an email in the corpus
+     * @return The vector of the email, the same as Main.vectorize of its content
+     */
+    SparseVector vector(int index) {
+        long startTimer = System.nanoTime();
+        Tokenizer tokenizer = this.tokenize(index);
+        SparseVector vector = SparseVector.ofTermIds(tokenizer.termIds, tokenizer.length);
+        Metrics.record(Metrics.Stage.TOKENIZE, startTimer);
+        return vector;
+    }
+
+    /**
+     * Tokenizes the bytes of emails into term ids and word hashes. Not thread-safe : use one per thread.
+     */
+    static class Tokenizer {
+
+        private final TermDictionary dictionary;
+
+        /** Term ids of the words of the last email, with repetitions */
+        int[] termIds = new int[256];
+        /** String.hashCode of the words of the last email, with repetitions */
+        int[] wordHashes = new int[256];
+        /** Number of words of the last email */
+        int length;
+
+        /** Open addressing cache from the bytes of an ASCII word to its term id */
+        private byte[][] cachedWords = new byte[1 << 12][];
+        private int[] cachedHashes = new int[1 << 12];
+        private int[] cachedIds = new int[1 << 12];
+        private int numberCached = 0;
+
+        private byte[] scratch = new byte[256];
+
+        Tokenizer(TermDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * Tokenizes the content of an email, like email.substring(9).split(" ")
+         * @param buffer The buffer holding the email
+         * @param offset The position of the content in the buffer
+         * @param contentLength The length of the content in bytes
+         */
+        void tokenize(MappedByteBuffer buffer, int offset, int contentLength) {
+            this.length = 0;
+            int end = offset + contentLength;
+
+            // substring(9) skips 9 chars, which are 9 bytes as long as they are ASCII
+            boolean asciiPrefix = contentLength >= 9;
+            for(int i = 0; asciiPrefix && i < 9; i++) {
+                asciiPrefix = buffer.get(offset + i) >= 0;
+            }
+            if(!asciiPrefix) {
+                this.tokenizeString(buffer, offset, contentLength);
+                return;
+            }
+
+            int start = offset + 9;
+            int lastNonEmpty = 0;
+            boolean separatorFound = false;
+            int wordStart = start;
+            for(int position = start; position <= end; position++) {
+                if(position < end && buffer.get(position) != ' ') {
+                    continue;
+                }
+                if(position < end) {
+                    separatorFound = true;
+                }
+                this.addWord(buffer, wordStart, position);
+                if(position > wordStart) {
+                    lastNonEmpty = this.length;
+                }
+                wordStart = position + 1;
+            }
+
+            // split removes the trailing empty words, unless there is no separator at all
+            if(separatorFound) {
+                this.length = lastNonEmpty;
+            }
+        }
+
+        /**
+         * Tokenizes an email whose first chars are not ASCII by decoding it, as the byte offset of substring(9)
+         * is not known
+         */
+        private void tokenizeString(MappedByteBuffer buffer, int offset, int contentLength) {
+            byte[] content = new byte[contentLength];
+            for(int i = 0; i < contentLength; i++) {
+                content[i] = buffer.get(offset + i);
+            }
+            String[] words = new String(content, StandardCharsets.UTF_8).substring(9).split(" ");
+            for(String word : words) {
+                this.append(this.dictionary.getId(word), word.hashCode());
+            }
+        }
+
+        /**
+         * Adds the word between two positions of the buffer
+         */
+        private void addWord(MappedByteBuffer buffer, int start, int end) {
+            int wordLength = end - start;
+            if(wordLength > this.scratch.length) {
+                this.scratch = new byte[Math.max(wordLength, this.scratch.length * 2)];
+            }
+            int hash = 0;
+            boolean ascii = true;
+            for(int i = 0; i < wordLength; i++) {
+                byte b = buffer.get(start + i);
+                this.scratch[i] = b;
+                hash = 31 * hash + b;
+                ascii &= b >= 0;
+            }
+
+            if(!ascii) {
+                // UTF-16 hash of a non ASCII word : decode it, as these words are rare
+                String word = new String(this.scratch, 0, wordLength, StandardCharsets.UTF_8);
+                this.append(this.dictionary.getId(word), word.hashCode());
+                return;
+            }
+
+            int mask = this.cachedWords.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while(this.cachedWords[slot] != null) {
+                if(this.cachedHashes[slot] == hash && MappedCorpus.sameBytes(this.cachedWords[slot], this.scratch, wordLength)) {
+                    this.append(this.cachedIds[slot], hash);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int id = this.dictionary.getId(new String(this.scratch, 0, wordLength, StandardCharsets.US_ASCII));
+            this.cachedWords[slot] = Arrays.copyOf(this.scratch, wordLength);
+            this.cachedHashes[slot] = hash;
+            this.cachedIds[slot] = id;
+            if(++this.numberCached * 2 > this.cachedWords.length) {
+                this.growCache();
+            }
+            this.append(id, hash);
+        }
+
+        private void append(int termId, int wordHash) {
+            if(this.length == this.termIds.length) {
+                this.termIds = Arrays.copyOf(this.termIds, this.length * 2);
+                this.wordHashes = Arrays.copyOf(this.wordHashes, this.length * 2);
+            }
+            this.termIds[this.length] = termId;
+            this.wordHashes[this.length] = wordHash;
+            this.length++;
+        }
+
+        private void growCache() {
+            byte[][] oldWords = this.cachedWords;
+            int[] oldHashes = this.cachedHashes;
+            int[] oldIds = this.cachedIds;
+            this.cachedWords = new byte[oldWords.length * 2][];
+            this.cachedHashes = new int[oldWords.length * 2];
+            this.cachedIds = new int[oldWords.length * 2];
+            int mask = this.cachedWords.length - 1;
+            for(int i = 0; i < oldWords.length; i++) {
+                if(oldWords[i] != null) {
+                    int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+                    while(this.cachedWords[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.cachedWords[slot] = oldWords[i];
+                    this.cachedHashes[slot] = oldHashes[i];
+                    this.cachedIds[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+
+    private static boolean sameBytes(byte[] word, byte[] scratch, int length) {
+        if(word.length != length) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(word[i] != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
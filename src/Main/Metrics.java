@@ -0,0 +1,143 @@
+package Main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the hot paths, shared by the whole process and cheap enough to be always on :
+ * a latency histogram per stage, the number of candidates scored per query and the bucket lookups.
+ * Everything is dumped as JSON at the end of a run, with the bucket size distribution of the tables.
+ */
+class Metrics {
+
+    /**
+     * Stages of indexing and querying an email
+     */
+    enum Stage {
+        /** Reading an email file */
+        READ,
+        /** Splitting an email into words and encoding its vector */
+        TOKENIZE,
+        /** Computing the signature (and multi-probe sequence) of an email */
+        SIGNATURE,
+        /** Getting the candidate emails of a query from its buckets */
+        BUCKET_LOOKUP,
+        /** Scoring the candidate emails of a query */
+        SCORING
+    }
+
+    private final static Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final static LatencyHistogram candidates = new LatencyHistogram();
+    private final static LongAdder lookups = new LongAdder();
+    private final static LongAdder emptyLookups = new LongAdder();
+
+    static {
+        for(Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    private Metrics() {}
+
+    /**
+     * Records the latency of a stage
+     * @param stage The stage
+     * @param startTime The value of System.nanoTime() when the stage started
+     */
+    static void record(Stage stage, long startTime) {
+        stages.get(stage).record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Records the number of candidate emails scored by a query
+     * @param numberCandidates The number of candidates
+     */
+    static void recordCandidates(int numberCandidates) {
+        candidates.record(numberCandidates);
+    }
+
+    /**
+     * Records the lookup of a bucket by a query
+     * @param bucket The ids of the emails of the bucket, null if the bucket is empty
+     */
+    static void recordLookup(int[] bucket) {
+        lookups.increment();
+        if(bucket == null) {
+            emptyLookups.increment();
+        }
+    }
+
+    static LatencyHistogram getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * @return The rate of bucket lookups finding an empty bucket, between 0 and 1
+     */
+    static double getEmptyLookupRate() {
+        long total = lookups.sum();
+        return total == 0 ? 0 : (double) emptyLookups.sum() / total;
+    }
+
+    /**
+     * Writes all the metrics as JSON
+     * @param file The file, overwritten if it exists
+     * @param tables The tables whose bucket size distributions are dumped, may be empty
+     * @throws IOException File issues
+     */
+    static void dump(File file, List<LshTable> tables) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"latencyUnit\": \"ns\",\n  \"stages\": {");
+        String separator = "\n";
+        for(Stage stage : Stage.values()) {
+            LatencyHistogram histogram = stages.get(stage);
+            json.append(separator).append("    \"").append(stage.name().toLowerCase()).append("\": ");
+            Metrics.appendHistogram(json, histogram);
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"candidatesPerQuery\": ");
+        Metrics.appendHistogram(json, candidates);
+        json.append(",\n  \"bucketLookups\": ").append(lookups.sum())
+                .append(",\n  \"emptyBucketRate\": ").append(Metrics.getEmptyLookupRate())
+                .append(",\n  \"tables\": [");
+
+        separator = "\n";
+        for(LshTable table : tables) {
+            LatencyHistogram sizes = new LatencyHistogram();
+            long[] signatures = table.buckets.signatures();
+            for(long signature : signatures) {
+                int[] bucket = table.buckets.get(signature);
+                sizes.record(bucket == null ? 0 : bucket.length);
+            }
+            long possibleBuckets = table.hyperplanes.size() >= 63 ? Long.MAX_VALUE : 1L << table.hyperplanes.size();
+            json.append(separator).append("    {\"hyperplanes\": ").append(table.hyperplanes.size())
+                    .append(", \"buckets\": ").append(signatures.length)
+                    .append(", \"emptyBucketRate\": ").append(1 - (double) signatures.length / possibleBuckets)
+                    .append(", \"splitBuckets\": ").append(table.splits.size())
+                    .append(", \"bucketSizes\": ");
+            Metrics.appendHistogram(json, sizes);
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\": ").append(histogram.getCount())
+                .append(", \"mean\": ").append(histogram.getMean())
+                .append(", \"p50\": ").append(histogram.percentile(50))
+                .append(", \"p99\": ").append(histogram.percentile(99))
+                .append(", \"max\": ").append(histogram.getMax()).append("}");
+    }
+}
@@ -0,0 +1,91 @@
+package Main;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Multi-probe sequence of an email signature : the signatures of the neighbouring buckets most likely to hold
+ * similar emails. A neighbouring bucket is obtained by flipping some bits of the signature, and flipping the
+ * bits of the hyperplanes the email is closest to first gives the most likely buckets.
+ *
+ * The flip sets are enumerated by increasing sum of margins with a heap, using the shift and expand operations
+ * of Lv et al., "Multi-Probe LSH: Efficient Indexing for High-Dimensional Similarity Search" (VLDB 2007).
+ */
+class MultiProbe {
+
+    private MultiProbe() {}
+
+    /**
+     * A set of flipped bits, given as positions in the hyperplanes sorted by increasing margin
+     */
+    private static class FlipSet implements Comparable<FlipSet> {
+        final int[] positions;
+        final double score;
+
+        FlipSet(int[] positions, double score) {
+            this.positions = positions;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(FlipSet other) {
+            return Double.compare(this.score, other.score);
+        }
+    }
+
+    /**
+     * Get the signatures to probe after the signature of an email
+     * @param signature The signature of the email
+     * @param margins The distance of the email to every hyperplane, in the order of the signature bits
+     * @param maxFlips The maximal number of flipped bits (Hamming distance to the signature)
+     * @param budget The maximal number of signatures returned
+     * @return The signatures to probe, most likely first. Does not contain the signature of the email.
+     */
+    static long[] probes(long signature, double[] margins, int maxFlips, int budget) {
+        int numberHyperplanes = margins.length;
+        if(budget <= 0 || maxFlips <= 0 || numberHyperplanes == 0) {
+            return new long[0];
+        }
+
+        Integer[] order = new Integer[numberHyperplanes];
+        for(int i = 0; i < numberHyperplanes; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(Math.abs(margins[a]), Math.abs(margins[b])));
+        double[] sortedMargins = new double[numberHyperplanes];
+        for(int i = 0; i < numberHyperplanes; i++) {
+            sortedMargins[i] = Math.abs(margins[order[i]]);
+        }
+
+        long[] probes = new long[budget];
+        int numberProbes = 0;
+        PriorityQueue<FlipSet> heap = new PriorityQueue<>();
+        heap.add(new FlipSet(new int[] {0}, sortedMargins[0]));
+
+        while(numberProbes < budget && !heap.isEmpty()) {
+            FlipSet flips = heap.poll();
+            int last = flips.positions[flips.positions.length - 1];
+
+            long probe = signature;
+            for(int position : flips.positions) {
+                probe ^= 1L << order[position];
+            }
+            probes[numberProbes++] = probe;
+
+            if(last + 1 < numberHyperplanes) {
+                // Shift : replace the last flipped bit by the next one
+                int[] shifted = flips.positions.clone();
+                shifted[shifted.length - 1] = last + 1;
+                heap.add(new FlipSet(shifted, flips.score - sortedMargins[last] + sortedMargins[last + 1]));
+
+                // Expand : also flip the next bit
+                if(flips.positions.length < maxFlips) {
+                    int[] expanded = Arrays.copyOf(flips.positions, flips.positions.length + 1);
+                    expanded[expanded.length - 1] = last + 1;
+                    heap.add(new FlipSet(expanded, flips.score + sortedMargins[last + 1]));
+                }
+            }
+        }
+        return numberProbes == budget ? probes : Arrays.copyOf(probes, numberProbes);
+    }
+}
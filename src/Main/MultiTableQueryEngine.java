@@ -0,0 +1,118 @@
+package Main;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Queries several hyperplanes tables at once.
+ *
+ * The candidate emails of the query buckets of all the tables (and of their neighbouring buckets with multi-probe)
+ * are first merged into a single set of email ids, so an email found by several tables is only loaded and scored
+ * once. The nearest candidate is the same as the best of successive part2 calls over the tables, ties going to
+ * the first candidate visited.
+ */
+class MultiTableQueryEngine {
+
+    private final Main main;
+    private final DocumentTable documents;
+    private final VectorStore vectorStore;
+    private final int probeBudget;
+
+    /**
+     * @param main The instance computing the email signatures
+     * @param documents The table giving the paths of the emails
+     * @param vectorStore The store giving the vectors of the queries and of the candidate emails
+     * @param probeBudget The maximal number of neighbouring buckets visited per table, 0 only visits the query bucket
+     */
+    MultiTableQueryEngine(Main main, DocumentTable documents, VectorStore vectorStore, int probeBudget) {
+        this.main = main;
+        this.documents = documents;
+        this.vectorStore = vectorStore;
+        this.probeBudget = probeBudget;
+    }
+
+    /**
+     * Finds the nearest candidate email of a query over all the tables
+     * @param query The query email
+     * @param tables The hyperplanes tables
+     * @return The result of the query
+     * @throws Exception If some file was not to be found
+     */
+    BatchQueryRunner.QueryResult query(File query, List<LshTable> tables) throws Exception {
+        long startTimer = System.nanoTime();
+        String path = query.getAbsolutePath();
+        return this.query(path, Main.getEmailContent(path), this.vectorStore.get(path), tables, startTimer);
+    }
+
+    /**
+     * Finds the nearest candidate email of a query given by its content over all the tables
+     * @param path The path of the query, only kept in the result
+     * @param content The content of the query email
+     * @param vector The vector of the query email
+     * @param tables The hyperplanes tables
+     * @param startTimer The value of System.nanoTime() when the query started
+     * @return The result of the query
+     * @throws Exception If some file was not to be found
+     */
+    BatchQueryRunner.QueryResult query(String path, String content, SparseVector vector, List<LshTable> tables,
+                                       long startTimer) throws Exception {
+        int[] candidates = this.candidates(content, tables);
+
+        long scoringTimer = System.nanoTime();
+        double cosine = Double.NEGATIVE_INFINITY;
+        int neighbour = -1;
+        for(int emailId : candidates) {
+            double tmpCosine = vector.cosineAbove(this.vectorStore.get(this.documents.getPath(emailId)), cosine);
+            if(tmpCosine > cosine) {
+                cosine = tmpCosine;
+                neighbour = emailId;
+            }
+        }
+        Metrics.record(Metrics.Stage.SCORING, scoringTimer);
+        Metrics.recordCandidates(candidates.length);
+
+        if(neighbour < 0) {
+            return new BatchQueryRunner.QueryResult(path, Math.PI / 2, -1, "No", 0, System.nanoTime() - startTimer);
+        }
+        return new BatchQueryRunner.QueryResult(path, SparseVector.toDistance(cosine), neighbour, this.documents.getPath(neighbour),
+                candidates.length, System.nanoTime() - startTimer);
+    }
+
+    /**
+     * Get the distinct candidate emails of a query over all the tables
+     * @param content The content of the query email
+     * @param tables The hyperplanes tables
+     * @return The ids of the candidate emails, in the order their buckets are visited : table by table,
+     *         the query bucket first, then the neighbouring buckets
+     */
+    int[] candidates(String content, List<LshTable> tables) {
+        BitSet seen = new BitSet(this.documents.size());
+        int[] candidates = new int[16];
+        int numberCandidates = 0;
+        int[] wordHashes = LshTable.wordHashes(tables, content);
+        for(LshTable table : tables) {
+            for(long signature : this.main.getProbedSignatures(table.hyperplanes, content, this.probeBudget)) {
+                long startTimer = System.nanoTime();
+                int[] bucket = table.get(signature, wordHashes);
+                Metrics.record(Metrics.Stage.BUCKET_LOOKUP, startTimer);
+                Metrics.recordLookup(bucket);
+                if(bucket == null) {
+                    continue;
+                }
+                for(int emailId : bucket) {
+                    if(seen.get(emailId)) {
+                        continue;
+                    }
+                    seen.set(emailId);
+                    if(numberCandidates == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, numberCandidates * 2);
+                    }
+                    candidates[numberCandidates++] = emailId;
+                }
+            }
+        }
+        return Arrays.copyOf(candidates, numberCandidates);
+    }
+}
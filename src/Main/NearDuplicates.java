@@ -0,0 +1,238 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects the near-duplicate emails of the datasets as they are ingested, every group being represented by its first email.
+ *
+ * Every email gets a 64 bits SimHash fingerprint of its term vector : every term votes with its count for the bits of
+ * its murmur3 hash. Near-duplicates have fingerprints differing by few bits. The fingerprints are cut in maxBits + 1
+ * bands, and two fingerprints differing by at most maxBits bits share at least one band, so an email is only compared
+ * with the representatives sharing a band with it.
+ *
+ * Only the fingerprints of the representatives are kept : the vectors of an email and of a representative are only
+ * fetched when their fingerprints are close, or equal when maxDistance is 0 since emails with the same words have
+ * the same fingerprint. Fingerprints hash the words themselves rather than their term ids, so the fingerprint and
+ * the representative of every email can be saved with the index and restored instead of examining the datasets again.
+ */
+class NearDuplicates {
+
+    private final int seed;
+    private final HashFunction hash;
+    private final int maxBits;
+    private final double maxDistance;
+    private final int bandBits;
+
+    /** The representatives, by value of their fingerprint in every band */
+    private final List<Map<Long, List<Integer>>> bands = new ArrayList<>();
+    private final Map<Integer, Long> fingerprints = new HashMap<>();
+    private int numberDuplicates = 0;
+
+    private final static int MAGIC = 0x4C534846;
+    private final static int VERSION = 2;
+    private final static int HEADER_SIZE = 52;
+
+    /**
+     * Gives the vector of an email, only called to verify emails with close fingerprints
+     */
+    interface VectorSource {
+        SparseVector get(int emailId) throws IOException;
+    }
+
+    /**
+     * @param seed The seed of the murmur3 hash of the terms
+     * @param maxBits The maximal number of differing bits between the fingerprints of near-duplicates, less than 64
+     * @param maxDistance The maximal distance between near-duplicates, 0 only accepts emails with the same words
+     */
+    NearDuplicates(int seed, int maxBits, double maxDistance) {
+        if(maxBits < 0 || maxBits > 63) {
+            throw new IllegalArgumentException("Fingerprints have 64 bits");
+        }
+        this.seed = seed;
+        this.hash = Hashing.murmur3_128(seed);
+        this.maxBits = maxBits;
+        this.maxDistance = maxDistance;
+        this.bandBits = 64 / (maxBits + 1);
+        for(int band = 0; band <= maxBits; band++) {
+            this.bands.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Get the representative of an email, the email becoming a representative if it is not a near-duplicate.
+     * Emails must be added in order of their ids, so a representative is the first email of its group.
+     * @param emailId The id of the email
+     * @param fingerprint The fingerprint of the email
+     * @param vectors Gives the vectors of the email and of the representatives with a close fingerprint
+     * @return The id of the representative, emailId if the email is not a near-duplicate
+     * @throws IOException If a vector could not be read
+     */
+    int add(int emailId, long fingerprint, VectorSource vectors) throws IOException {
+        SparseVector vector = null;
+        for(int band = 0; band <= this.maxBits; band++) {
+            List<Integer> representatives = this.bands.get(band).get(this.bandValue(fingerprint, band));
+            if(representatives == null) {
+                continue;
+            }
+            for(int representative : representatives) {
+                if(this.isClose(fingerprint, this.fingerprints.get(representative))) {
+                    if(vector == null) {
+                        vector = vectors.get(emailId);
+                    }
+                    if(this.isDuplicate(vector, vectors.get(representative))) {
+                        this.numberDuplicates++;
+                        return representative;
+                    }
+                }
+            }
+        }
+
+        this.addRepresentative(emailId, fingerprint);
+        return emailId;
+    }
+
+    /**
+     * @return The number of emails found to be near-duplicates so far
+     */
+    int getNumberDuplicates() {
+        return this.numberDuplicates;
+    }
+
+    /**
+     * @param email The content of an email
+     * @return The SimHash fingerprint of the email, every word voting with its number of occurrences
+     */
+    long fingerprint(String email) {
+        Map<String, Integer> counts = new HashMap<>();
+        for(String word : email.substring(9).split(" ")) {
+            counts.merge(word, 1, Integer::sum);
+        }
+        int[] weights = new int[64];
+        for(Map.Entry<String, Integer> term : counts.entrySet()) {
+            long termHash = this.hash.hashString(term.getKey(), StandardCharsets.UTF_8).asLong();
+            for(int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((termHash >>> bit) & 1) != 0 ? term.getValue() : -term.getValue();
+            }
+        }
+        long fingerprint = 0;
+        for(int bit = 0; bit < 64; bit++) {
+            if(weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Restores the groups saved with the index, only if they were found with the same parameters
+     * @param file The groups file
+     * @param stamp The stamp of the emails, in order of their ids starting from 0
+     * @return The id of the representative of every email, null if the file is missing, corrupt or stale,
+     *         nothing being restored then
+     */
+    int[] restore(File file, MappedCorpus.Stamp stamp) {
+        if(!file.isFile() || file.length() != HEADER_SIZE + 12L * stamp.numberEmails || !this.fingerprints.isEmpty()) {
+            return null;
+        }
+        long[] fingerprints = new long[stamp.numberEmails];
+        int[] representatives = new int[stamp.numberEmails];
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != this.seed
+                    || in.readInt() != this.maxBits || in.readDouble() != this.maxDistance
+                    || !stamp.sameAs(new MappedCorpus.Stamp(in.readInt(), in.readLong(), in.readLong(), in.readLong()))) {
+                return null;
+            }
+            for(int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = in.readLong();
+                representatives[i] = in.readInt();
+                // A representative is the first email of its group and stands for itself
+                if(representatives[i] < 0 || representatives[i] > i
+                        || representatives[representatives[i]] != representatives[i]) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        for(int emailId = 0; emailId < representatives.length; emailId++) {
+            if(representatives[emailId] == emailId) {
+                this.addRepresentative(emailId, fingerprints[emailId]);
+            } else {
+                this.numberDuplicates++;
+            }
+        }
+        return representatives;
+    }
+
+    /**
+     * Saves the fingerprint and the representative of every email, so the groups can be restored
+     * @param file The groups file, overwritten if it exists
+     * @param stamp The stamp of the emails, in order of their ids starting from 0
+     * @param fingerprints The fingerprint of every email
+     * @param representatives The id of the representative of every email
+     * @throws IOException File issues
+     */
+    void save(File file, MappedCorpus.Stamp stamp, long[] fingerprints, int[] representatives) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.seed);
+            out.writeInt(this.maxBits);
+            out.writeDouble(this.maxDistance);
+            out.writeInt(stamp.numberEmails);
+            out.writeLong(stamp.totalBytes);
+            out.writeLong(stamp.lastModified);
+            out.writeLong(stamp.pathsHash);
+            for(int i = 0; i < fingerprints.length; i++) {
+                out.writeLong(fingerprints[i]);
+                out.writeInt(representatives[i]);
+            }
+        }
+    }
+
+    /**
+     * @param fingerprint The fingerprint of an email
+     * @param representative The fingerprint of a representative
+     * @return True if the email may be a near-duplicate of the representative
+     */
+    private boolean isClose(long fingerprint, long representative) {
+        return this.maxDistance <= 0 ? fingerprint == representative
+                : Long.bitCount(fingerprint ^ representative) <= this.maxBits;
+    }
+
+    private void addRepresentative(int emailId, long fingerprint) {
+        for(int band = 0; band <= this.maxBits; band++) {
+            this.bands.get(band).computeIfAbsent(this.bandValue(fingerprint, band), k -> new ArrayList<>()).add(emailId);
+        }
+        this.fingerprints.put(emailId, fingerprint);
+    }
+
+    private boolean isDuplicate(SparseVector vector, SparseVector representative) {
+        return this.maxDistance <= 0 ? vector.sameTerms(representative)
+                : vector.distance(representative) <= this.maxDistance;
+    }
+
+    /**
+     * @param fingerprint A fingerprint
+     * @param band A band, the last one taking the remaining bits
+     * @return The bits of the fingerprint in the band
+     */
+    private long bandValue(long fingerprint, int band) {
+        long bits = fingerprint >>> (band * this.bandBits);
+        return band == this.maxBits ? bits : bits & ((1L << this.bandBits) - 1);
+    }
+}
@@ -0,0 +1,156 @@
+package Main;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Term-frequency vectors of a whole list of emails, kept outside of the heap in direct buffers.
+ *
+ * The vectors are stored CSR-style : the term ids and counts of all the emails one after the other,
+ * and for every email the position of its first term and its norm. The buffers are allocated in chunks
+ * as emails are added, so the heap used does not depend on the number of emails, and distances are
+ * computed directly from the buffers without building any SparseVector.
+ * Emails can only be added from a single thread, distances can then be computed from any thread.
+ */
+class OffHeapVectors {
+
+    private final static int CHUNK_BITS = 20;
+    private final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+    /** A term : its id and its count */
+    private final static int TERM_BYTES = 8;
+    /** An email : the position of its first term and its norm */
+    private final static int EMAIL_BYTES = 16;
+
+    private final List<ByteBuffer> terms = new ArrayList<>();
+    private final List<ByteBuffer> emails = new ArrayList<>();
+    private long numberTerms = 0;
+    private int numberEmails = 0;
+
+    /**
+     * Adds the vector of an email
+     * @param vector The vector
+     * @return The position of the email
+     */
+    int add(SparseVector vector) {
+        this.putEmail(this.numberEmails, this.numberTerms, vector.norm);
+        for(int i = 0; i < vector.termIds.length; i++) {
+            this.putTerm(this.numberTerms++, vector.termIds[i], vector.counts[i]);
+        }
+        // The end of the last email is the start of the next one
+        this.putEmail(this.numberEmails + 1, this.numberTerms, 0);
+        return this.numberEmails++;
+    }
+
+    /**
+     * @return The number of emails
+     */
+    int size() {
+        return this.numberEmails;
+    }
+
+    /**
+     * @return The number of bytes allocated outside of the heap
+     */
+    long memoryBytes() {
+        return (long) (this.terms.size() * TERM_BYTES + this.emails.size() * EMAIL_BYTES) * CHUNK_SIZE;
+    }
+
+    /**
+     * Compute the distance (angle) between a query and an email. Gives the same result as SparseVector.distance.
+     * @param query The query vector
+     * @param email The position of the email
+     * @return The distance between the query and the email
+     */
+    double distance(SparseVector query, int email) {
+        return SparseVector.toDistance(this.cosineAbove(query, email, Double.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * Compute the cosine similarity between a query and an email, giving up as soon as it cannot be above a minimum.
+     * Same bound as SparseVector.cosineAbove.
+     * @param query The query vector
+     * @param email The position of the email
+     * @param minimum The cosine to beat
+     * @return The cosine similarity, or some value not above minimum if it is not above
+     */
+    double cosineAbove(SparseVector query, int email, double minimum) {
+        long position = this.getFirstTerm(email);
+        long end = this.getFirstTerm(email + 1);
+        double norm = this.getNorm(email);
+        double norms = query.norm * norm;
+        int[] ids = query.termIds;
+        long left1 = query.squaredNorm;
+        long left2 = Math.round(norm * norm);
+        int i = 0;
+        int dot = 0;
+        int steps = 0;
+        while(i < ids.length && position < end) {
+            if((++steps & 7) == 0 && (dot + Math.sqrt((double) left1 * left2)) / norms <= minimum) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int termId = this.getTermId(position);
+            if(ids[i] == termId) {
+                int count = this.getCount(position++);
+                dot += query.counts[i] * count;
+                left1 -= query.counts[i] * query.counts[i];
+                left2 -= count * count;
+                i++;
+            } else if(ids[i] < termId) {
+                left1 -= query.counts[i] * query.counts[i];
+                i++;
+            } else {
+                int count = this.getCount(position++);
+                left2 -= count * count;
+            }
+        }
+        double cosine = dot / norms;
+        return cosine > 1 ? 1 : cosine;
+    }
+
+    private void putTerm(long position, int termId, int count) {
+        ByteBuffer chunk = OffHeapVectors.chunk(this.terms, position, TERM_BYTES);
+        int offset = (int) (position & (CHUNK_SIZE - 1)) * TERM_BYTES;
+        chunk.putInt(offset, termId);
+        chunk.putInt(offset + 4, count);
+    }
+
+    private void putEmail(int email, long firstTerm, double norm) {
+        ByteBuffer chunk = OffHeapVectors.chunk(this.emails, email, EMAIL_BYTES);
+        int offset = (email & (CHUNK_SIZE - 1)) * EMAIL_BYTES;
+        chunk.putLong(offset, firstTerm);
+        chunk.putDouble(offset + 8, norm);
+    }
+
+    private int getTermId(long position) {
+        return this.terms.get((int) (position >>> CHUNK_BITS)).getInt((int) (position & (CHUNK_SIZE - 1)) * TERM_BYTES);
+    }
+
+    private int getCount(long position) {
+        return this.terms.get((int) (position >>> CHUNK_BITS)).getInt((int) (position & (CHUNK_SIZE - 1)) * TERM_BYTES + 4);
+    }
+
+    private long getFirstTerm(int email) {
+        return this.emails.get(email >>> CHUNK_BITS).getLong((email & (CHUNK_SIZE - 1)) * EMAIL_BYTES);
+    }
+
+    private double getNorm(int email) {
+        return this.emails.get(email >>> CHUNK_BITS).getDouble((email & (CHUNK_SIZE - 1)) * EMAIL_BYTES + 8);
+    }
+
+    /**
+     * Get the chunk holding a position, allocating the missing chunks
+     * @param chunks The chunks
+     * @param position The position
+     * @param bytes The number of bytes per position
+     * @return The chunk
+     */
+    private static ByteBuffer chunk(List<ByteBuffer> chunks, long position, int bytes) {
+        int index = (int) (position >>> CHUNK_BITS);
+        while(chunks.size() <= index) {
+            chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * bytes).order(ByteOrder.nativeOrder()));
+        }
+        return chunks.get(index);
+    }
+}
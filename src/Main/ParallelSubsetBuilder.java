@@ -0,0 +1,181 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the subset collection of emails on several cores.
+ * The emails are registered in the document table first, so they get the same ids as in a serial build.
+ * The list of emails is then split in chunks hashed in parallel. Every worker thread fills its own collections,
+ * so the workers never wait for each other, and the collections of all the workers are merged at the end.
+ * The result contains exactly the same buckets as the serial Main.getHyperplanesSubsets.
+ * Several tables are built in the same pass, every email being read once for all of them.
+ */
+class ParallelSubsetBuilder {
+
+    private final Main main;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * @param main The instance computing the email signatures
+     * @param pool The pool running the chunks
+     * @param chunkSize The number of emails hashed by a single task
+     */
+    ParallelSubsetBuilder(Main main, ForkJoinPool pool, int chunkSize) {
+        this.main = main;
+        this.pool = pool;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Get the full subset collections of the given emails for several tables, reading every email once
+     * @param files The emails, grouped by folder
+     * @param tables The hyperplanes of every table
+     * @return The full subset collection of every table
+     * @throws IOException If an email could not be read
+     */
+    List<SignatureBuckets> build(List<List<File>> files, List<List<HashFunction>> tables) throws IOException {
+        List<File> emails = new ArrayList<>();
+        for(List<File> folder : files) {
+            for(File email : folder) {
+                this.main.registerEmail(email);
+                emails.add(email);
+            }
+        }
+
+        return this.invoke((results, position) -> this.main.updateSubsetMessages(results, tables, emails.get(position)),
+                emails.size(), tables.size());
+    }
+
+    /**
+     * Get the full subset collections of the emails of a packed corpus for several tables,
+     * tokenizing every email once
+     * @param corpus The packed emails
+     * @param tables The hyperplanes of every table
+     * @return The full subset collection of every table
+     * @throws IOException Never thrown, the corpus is already in memory
+     */
+    List<SignatureBuckets> build(MappedCorpus corpus, List<List<HashFunction>> tables) throws IOException {
+        for(int i = 0; i < corpus.size(); i++) {
+            this.main.registerEmail(new File(corpus.getPath(i)));
+        }
+
+        return this.invoke((results, position) -> this.main.updateSubsetMessages(results, tables, corpus, position),
+                corpus.size(), tables.size());
+    }
+
+    private static List<SignatureBuckets> newCollections(int numberTables) {
+        List<SignatureBuckets> collections = new ArrayList<>();
+        for(int t = 0; t < numberTables; t++) {
+            collections.add(new SignatureBuckets());
+        }
+        return collections;
+    }
+
+    /**
+     * Merges the collections filled by every worker thread
+     * @param partials The collection of every table, for every worker thread
+     * @param numberTables The number of tables
+     * @return The compacted full subset collection of every table
+     */
+    private static List<SignatureBuckets> merge(Collection<List<SignatureBuckets>> partials, int numberTables) {
+        List<SignatureBuckets> results = new ArrayList<>();
+        for(int t = 0; t < numberTables; t++) {
+            int expectedBuckets = 0;
+            for(List<SignatureBuckets> partial : partials) {
+                expectedBuckets = Math.max(expectedBuckets, partial.get(t).size());
+            }
+            SignatureBuckets result = new SignatureBuckets(expectedBuckets);
+            for(List<SignatureBuckets> partial : partials) {
+                SignatureBuckets collection = partial.get(t);
+                for(long signature : collection.signatures()) {
+                    for(int emailId : collection.get(signature)) {
+                        result.add(signature, emailId);
+                    }
+                }
+            }
+            result.compact();
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Hashes the emails at every position of a range on the pool
+     * @param hasher Hashes the email at a position
+     * @param numberEmails The number of emails
+     * @param numberTables The number of tables
+     * @return The compacted full subset collection of every table
+     * @throws IOException If an email could not be read
+     */
+    private List<SignatureBuckets> invoke(Hasher hasher, int numberEmails, int numberTables) throws IOException {
+        Map<Thread, List<SignatureBuckets>> partials = new ConcurrentHashMap<>();
+        try {
+            this.pool.invoke(new HashingTask(hasher, partials, numberTables, 0, numberEmails));
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return ParallelSubsetBuilder.merge(partials.values(), numberTables);
+    }
+
+    /**
+     * Adds the email at a position to the collections of a worker thread
+     */
+    private interface Hasher {
+        void hash(List<SignatureBuckets> collections, int position) throws IOException;
+    }
+
+    /**
+     * Hashes a range of the emails, splitting it in two while it is bigger than the chunk size
+     */
+    private class HashingTask extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        private final Hasher hasher;
+        /** The collections of every worker thread */
+        private final Map<Thread, List<SignatureBuckets>> partials;
+        private final int numberTables;
+        private final int start;
+        private final int end;
+
+        HashingTask(Hasher hasher, Map<Thread, List<SignatureBuckets>> partials, int numberTables, int start, int end) {
+            this.hasher = hasher;
+            this.partials = partials;
+            this.numberTables = numberTables;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if(this.end - this.start > chunkSize) {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new HashingTask(this.hasher, this.partials, this.numberTables, this.start, middle),
+                        new HashingTask(this.hasher, this.partials, this.numberTables, middle, this.end));
+                return;
+            }
+
+            List<SignatureBuckets> collections = this.partials.computeIfAbsent(Thread.currentThread(),
+                    thread -> ParallelSubsetBuilder.newCollections(this.numberTables));
+            try {
+                for(int i = this.start; i < this.end; i++) {
+                    this.hasher.hash(collections, i);
+                }
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package Main;
+
+import com.google.common.hash.HashFunction;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes on which side of every hyperplane an email is, with the same result as Main.aboveUnderHyperplane
+ * but without any BigInteger.
+ *
+ * Every word is hashed once, identical words are merged, and every hyperplane is hashed once per distinct word.
+ * The projection is accumulated exactly on 128 bits, held in two longs :
+ * a word product fits in 63 bits and multiplying it by its number of occurences fits in 95 bits.
+ */
+class ProjectionEngine {
+
+    private ProjectionEngine() {}
+
+    /**
+     * Get the signature of an email, bit i being set when the email is under hyperplane i
+     * @param hyperplanes The hyperplanes, at most 64
+     * @param email The content of the email
+     * @return The signature of the email
+     */
+    static long signature(List<HashFunction> hyperplanes, String email) {
+        int[] indexes = ProjectionEngine.wordHashes(email);
+        return ProjectionEngine.signature(hyperplanes, indexes, indexes.length);
+    }
+
+    /**
+     * Get the signature of the word hashes of an email, the array is sorted in place
+     * @param hyperplanes The hyperplanes, at most 64
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @return The signature of the email, bit i being set when the email is under hyperplane i
+     */
+    static long signature(List<HashFunction> hyperplanes, int[] indexes, int length) {
+        boolean[] above = ProjectionEngine.aboveUnderHyperplanes(hyperplanes, indexes, length);
+        long signature = 0;
+        for(int i = 0; i < above.length; i++) {
+            if(!above[i]) {
+                signature |= 1L << i;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Checks if an email is under of above every hyperplane, in a single pass over its words
+     * @param hyperplanes The hyperplanes
+     * @param email The content of the email
+     * @return For every hyperplane, false means under and true above
+     */
+    static boolean[] aboveUnderHyperplanes(List<HashFunction> hyperplanes, String email) {
+        int[] indexes = ProjectionEngine.wordHashes(email);
+        return ProjectionEngine.aboveUnderHyperplanes(hyperplanes, indexes, indexes.length);
+    }
+
+    /**
+     * Checks if the word hashes of an email are under or above every hyperplane.
+     * The array is sorted in place.
+     * @param hyperplanes The hyperplanes
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @return For every hyperplane, false means under and true above
+     */
+    static boolean[] aboveUnderHyperplanes(List<HashFunction> hyperplanes, int[] indexes, int length) {
+        long[] high = new long[hyperplanes.size()];
+        long[] low = new long[hyperplanes.size()];
+        ProjectionEngine.accumulate(hyperplanes, indexes, length, high, low);
+
+        boolean[] above = new boolean[high.length];
+        for(int h = 0; h < high.length; h++) {
+            above[h] = high[h] >= 0;
+        }
+        return above;
+    }
+
+    /**
+     * Get the signature of an email and its projection on every hyperplane
+     * @param hyperplanes The hyperplanes, at most 64
+     * @param email The content of the email
+     * @param projections Receives the projection on every hyperplane, positive or zero when above and negative
+     *                    when under. Values are rounded to doubles, only the signature is exact.
+     * @return The signature of the email, bit i being set when the email is under hyperplane i
+     */
+    static long signature(List<HashFunction> hyperplanes, String email, double[] projections) {
+        int[] indexes = ProjectionEngine.wordHashes(email);
+        long[] high = new long[hyperplanes.size()];
+        long[] low = new long[hyperplanes.size()];
+        ProjectionEngine.accumulate(hyperplanes, indexes, indexes.length, high, low);
+
+        long signature = 0;
+        for(int h = 0; h < high.length; h++) {
+            if(high[h] < 0) {
+                signature |= 1L << h;
+            }
+            double unsignedLow = (low[h] >>> 1) * 2.0 + (low[h] & 1);
+            projections[h] = high[h] * 0x1.0p64 + unsignedLow;
+        }
+        return signature;
+    }
+
+    /**
+     * Get the String.hashCode of every word of an email
+     * @param email The content of the email
+     * @return The hashes, with repetitions
+     */
+    static int[] wordHashes(String email) {
+        String[] words = email.substring(9).split(" ");
+        int[] indexes = new int[words.length];
+        for(int i = 0; i < words.length; i++) {
+            indexes[i] = words[i].hashCode();
+        }
+        return indexes;
+    }
+
+    /**
+     * Accumulates the projections of word hashes on every hyperplane, on 128 bits.
+     * The array of hashes is sorted in place.
+     * @param hyperplanes The hyperplanes
+     * @param indexes The String.hashCode of every word of the email, with repetitions
+     * @param length The number of hashes to use from the array
+     * @param high Receives the signed high 64 bits of every projection
+     * @param low Receives the unsigned low 64 bits of every projection
+     */
+    private static void accumulate(List<HashFunction> hyperplanes, int[] indexes, int length, long[] high, long[] low) {
+        Arrays.sort(indexes, 0, length);
+
+        int numberHyperplanes = hyperplanes.size();
+        HashFunction[] functions = hyperplanes.toArray(new HashFunction[0]);
+
+        int i = 0;
+        while(i < length) {
+            long index = indexes[i];
+            long occurences = 0;
+            while(i < length && indexes[i] == index) {
+                occurences++;
+                i++;
+            }
+
+            for(int h = 0; h < numberHyperplanes; h++) {
+                long product = index * functions[h].hashLong(index).asInt();
+                long productLow = product * occurences;
+                long productHigh = ProjectionEngine.multiplyHigh(product, occurences);
+
+                long sumLow = low[h] + productLow;
+                high[h] += productHigh + (Long.compareUnsigned(sumLow, productLow) < 0 ? 1 : 0);
+                low[h] = sumLow;
+            }
+        }
+    }
+
+    /**
+     * Math.multiplyHigh of Java 9, built from the 32 bits halves of the factors
+     * @param x A factor
+     * @param y A factor
+     * @return The signed high 64 bits of the 128 bits product
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+}
@@ -0,0 +1,181 @@
+package Main;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Resident classification server : the hyperplanes tables are built or loaded once, then emails are classified
+ * over HTTP by a warm JVM instead of paying the index build and the JIT warmup for every batch.
+ *
+ * POST /classify with the content of an email as body answers one line : label,neighbour,distance
+ * where label is spam or genuine, neighbour the path of the nearest email ("No" if there is none) and distance
+ * its distance to the query (PI/2 if there is none). The label may be voted before every candidate is scored,
+ * but the nearest email is always searched among all of them.
+ * Every request runs on its own virtual thread when the JVM has them (Java 21 and later), on a cached thread pool
+ * otherwise. The server only listens on the loopback interface.
+ *
+ * With drop=path, the emails dropped into that directory are indexed live (see DropDirectoryWatcher) and answered too.
+ *
+ * Usage : java Main.QueryServer [port=8438] [drop=./drop]
+ */
+class QueryServer implements Closeable {
+
+    private final Main main;
+    private final DocumentTable documents;
+    private final Supplier<List<LshTable>> tables;
+    private final KnnClassifier classifier;
+    private final ExecutorService executor;
+    private final BatchQueryRunner runner;
+    private final HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        Main main = new Main();
+        int port = Integer.parseInt(options.getOrDefault("port", "8438"));
+        DropDirectoryWatcher watcher = options.containsKey("drop") ? main.startLiveIndex(options.get("drop")) : null;
+        QueryServer server = watcher == null ? main.startQueryServer(port)
+                : main.startQueryServer(port, watcher.getIndex());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            if(watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            main.dumpMetrics();
+        }));
+    }
+
+    /**
+     * @param main The instance computing the signatures and the vectors of the queries
+     * @param documents The table giving the paths of the emails
+     * @param vectorStore The store giving the vectors of the candidate emails
+     * @param tables Gives the current hyperplanes tables, for every request
+     * @param classifier The classifier labelling the queries
+     * @param probeBudget The maximal number of neighbouring buckets visited per table, 0 only visits the query bucket
+     * @param port The port to listen on, 0 for any free port
+     * @throws IOException If the port could not be bound
+     */
+    QueryServer(Main main, DocumentTable documents, VectorStore vectorStore, Supplier<List<LshTable>> tables,
+                KnnClassifier classifier, int probeBudget, int port) throws IOException {
+        this.main = main;
+        this.documents = documents;
+        this.tables = tables;
+        this.classifier = classifier;
+        this.executor = QueryServer.newRequestExecutor();
+        this.runner = new BatchQueryRunner(main, documents, vectorStore, this.executor, probeBudget);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/classify", this::handle);
+        this.server.setExecutor(this.executor);
+    }
+
+    /**
+     * Starts answering requests
+     */
+    void start() {
+        this.server.start();
+        System.err.println("[INFO] Query server listening on http://localhost:" + this.getPort() + "/classify");
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, the requests being answered are given one second to complete
+     */
+    @Override
+    public void close() {
+        this.server.stop(1);
+        this.executor.shutdown();
+    }
+
+    /**
+     * Classifies the email of a request
+     * @param exchange The request and its response
+     * @throws IOException If the response could not be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long startTimer = System.nanoTime();
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                QueryServer.respond(exchange, 405, "POST the content of an email\n");
+                return;
+            }
+            String content;
+            try(InputStream body = exchange.getRequestBody()) {
+                content = new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+            }
+            if(content.length() < 9) {
+                QueryServer.respond(exchange, 400, "An email starts with its subject line\n");
+                return;
+            }
+
+            SparseVector vector = this.main.vectorizeQuery(content);
+            BatchQueryRunner.Classification classification = this.runner.classify(
+                    exchange.getRequestURI().toString(), content, vector, this.tables.get(), this.classifier,
+                    true, startTimer);
+
+            StringBuilder response = new StringBuilder(classification.spam ? "spam" : "genuine");
+            KnnClassifier.Neighbour nearest = classification.nearest;
+            if(nearest == null) {
+                response.append(",No,").append(Math.PI / 2);
+            } else {
+                response.append(",").append(this.documents.getPath(nearest.emailId))
+                        .append(",").append(nearest.distance);
+            }
+            QueryServer.respond(exchange, 200, response.append("\n").toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+            QueryServer.respond(exchange, 500, e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Get an executor running every task on a new virtual thread, or a cached thread pool
+     * on JVMs without virtual threads. Looked up by reflection so the code still compiles for Java 8.
+     * @return The executor
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
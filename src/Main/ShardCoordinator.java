@@ -0,0 +1,172 @@
+package Main;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Part 4 index split into shards, every shard built and queried by its own ShardWorker process on this machine.
+ *
+ * Email p of the datasets belongs to shard p % numberShards, so every shard holds the same share of every dataset.
+ * All the shards use the same hyperplanes, so the buckets of a signature in all the shards together are the bucket
+ * of the whole datasets : a query is sent to every shard at once, and the nearest of their answers is kept, ties
+ * going to the lowest shard. The workers build their tables at the same time, and every one of them only scores
+ * the candidates of its own shard.
+ */
+class ShardCoordinator implements Closeable {
+
+    private final List<Process> workers = new ArrayList<>();
+    private final List<URL> urls = new ArrayList<>();
+    private final ExecutorService executor = QueryServer.newRequestExecutor();
+
+    /**
+     * Starts the workers of all the shards and waits until all of them are built
+     * @param numberShards The number of shards
+     * @throws IOException If a worker could not be started or stopped before being ready
+     */
+    ShardCoordinator(int numberShards) throws IOException {
+        try {
+            for(int shard = 0; shard < numberShards; shard++) {
+                ProcessBuilder builder = new ProcessBuilder(ShardCoordinator.getWorkerCommand(shard, numberShards));
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                this.workers.add(builder.start());
+            }
+            String host = InetAddress.getLoopbackAddress().getHostAddress();
+            for(int shard = 0; shard < numberShards; shard++) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        this.workers.get(shard).getInputStream(), StandardCharsets.UTF_8));
+                String port = reader.readLine();
+                if(port == null) {
+                    throw new IOException("The worker of shard " + shard + " stopped before being ready");
+                }
+                this.urls.add(new URL("http", host, Integer.parseInt(port.trim()), "/nearest"));
+            }
+        } catch(IOException | RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the nearest email of a query over all the shards
+     * @param query The query email
+     * @return The result of the query. The neighbour id is always -1, email ids being local to every worker
+     * @throws Exception If some file was not to be found or a worker failed
+     */
+    BatchQueryRunner.QueryResult query(File query) throws Exception {
+        long startTimer = System.nanoTime();
+        byte[] body = Files.readAllBytes(query.toPath());
+        List<Future<String>> responses = new ArrayList<>();
+        for(URL url : this.urls) {
+            responses.add(this.executor.submit(() -> LoadGenerator.post(url, body)));
+        }
+
+        double distance = Math.PI / 2;
+        String neighbourPath = "No";
+        int numberCandidates = 0;
+        for(Future<String> response : responses) {
+            String[] fields = ShardCoordinator.get(response).trim().split(",", 3);
+            double shardDistance = Double.parseDouble(fields[0]);
+            numberCandidates += Integer.parseInt(fields[1]);
+            if(!"No".equals(fields[2]) && ("No".equals(neighbourPath) || shardDistance < distance)) {
+                distance = shardDistance;
+                neighbourPath = fields[2];
+            }
+        }
+        return new BatchQueryRunner.QueryResult(query.getAbsolutePath(), distance, -1, neighbourPath,
+                numberCandidates, System.nanoTime() - startTimer);
+    }
+
+    /**
+     * Finds the nearest email of several queries over all the shards
+     * @param listQueries The query emails
+     * @param threads The number of queries sent at the same time
+     * @return The result of every query, in the order of the queries
+     * @throws Exception If some file was not to be found or a worker failed
+     */
+    List<BatchQueryRunner.QueryResult> query(List<File> listQueries, int threads) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<BatchQueryRunner.QueryResult>> futures = new ArrayList<>();
+            for(File query : listQueries) {
+                futures.add(clients.submit(() -> this.query(query)));
+            }
+            List<BatchQueryRunner.QueryResult> results = new ArrayList<>();
+            for(Future<BatchQueryRunner.QueryResult> future : futures) {
+                results.add(ShardCoordinator.get(future));
+            }
+            return results;
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Stops all the workers : their standard input is closed, and the ones still running after 5 seconds are killed
+     */
+    @Override
+    public void close() {
+        for(Process worker : this.workers) {
+            try {
+                worker.getOutputStream().close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for(Process worker : this.workers) {
+            try {
+                if(!worker.waitFor(5, TimeUnit.SECONDS)) {
+                    worker.destroyForcibly();
+                }
+            } catch(InterruptedException e) {
+                worker.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Get the command starting the worker of a shard with the same JVM, options and class path as this process
+     * @param shard The index of the shard
+     * @param numberShards The number of shards
+     * @return The command
+     */
+    private static List<String> getWorkerCommand(int shard, int numberShards) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for(String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // A debugger or an agent can not be attached to several processes
+            if(!argument.startsWith("-agentlib") && !argument.startsWith("-javaagent")
+                    && !argument.startsWith("-Xrunjdwp")) {
+                command.add(argument);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main.ShardWorker");
+        command.add("shard=" + shard);
+        command.add("shards=" + numberShards);
+        return command;
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+}
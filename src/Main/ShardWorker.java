@@ -0,0 +1,135 @@
+package Main;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Worker process of one shard of the datasets, started by a ShardCoordinator : builds the part 4 tables and the
+ * vector store of the emails of its shard only, then answers the nearest email queries of the coordinator.
+ *
+ * POST /nearest with the content of an email as body answers one line : distance,candidates,neighbour
+ * where neighbour is the path of the nearest email of the shard ("No" if there is none, at distance PI/2)
+ * and candidates the number of emails of the shard scored.
+ * Once the tables are built, the worker prints its port on the standard output, then stops when its standard
+ * input is closed, so a worker never outlives its coordinator. It only listens on the loopback interface.
+ *
+ * Usage : java Main.ShardWorker shard=0 shards=1 [port=0]
+ */
+class ShardWorker implements Closeable {
+
+    private final Main main;
+    private final LshIndex index;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int shard = Integer.parseInt(options.getOrDefault("shard", "0"));
+        int numberShards = Integer.parseInt(options.getOrDefault("shards", "1"));
+        if(shard < 0 || shard >= numberShards) {
+            throw new IllegalArgumentException("No shard " + shard + " out of " + numberShards);
+        }
+
+        // Answers are small : without TCP_NODELAY every one of them waits for the delayed ACK of the coordinator
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Main main = new Main();
+        try(ShardWorker worker = new ShardWorker(main, main.getShardIndex(shard, numberShards),
+                Integer.parseInt(options.getOrDefault("port", "0")))) {
+            worker.server.start();
+            System.out.println(worker.getPort());
+            System.out.flush();
+            while(System.in.read() != -1) {
+                // Nothing is expected from the coordinator until it closes the stream
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @param main The instance computing the signatures and the vectors of the queries
+     * @param index The index of the emails of the shard
+     * @param port The port to listen on, 0 for any free port
+     * @throws IOException If the port could not be bound
+     */
+    ShardWorker(Main main, LshIndex index, int port) throws IOException {
+        this.main = main;
+        this.index = index;
+        this.executor = QueryServer.newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/nearest", this::handle);
+        this.server.setExecutor(this.executor);
+    }
+
+    /**
+     * @return The port the worker listens on
+     */
+    int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the worker, the requests being answered are given one second to complete
+     */
+    @Override
+    public void close() {
+        this.server.stop(1);
+        this.executor.shutdown();
+    }
+
+    /**
+     * Finds the nearest email of the shard to the email of a request
+     * @param exchange The request and its response
+     * @throws IOException If the response could not be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                ShardWorker.respond(exchange, 405, "POST the content of an email\n");
+                return;
+            }
+            String content;
+            try(InputStream body = exchange.getRequestBody()) {
+                content = new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+            }
+            if(content.length() < 9) {
+                ShardWorker.respond(exchange, 400, "An email starts with its subject line\n");
+                return;
+            }
+
+            BatchQueryRunner.QueryResult result = this.index.query(exchange.getRequestURI().toString(), content,
+                    this.main.vectorizeQuery(content));
+            ShardWorker.respond(exchange, 200, result.distance + "," + result.numberCandidates + ","
+                    + result.neighbourPath + "\n");
+        } catch (Exception e) {
+            e.printStackTrace();
+            ShardWorker.respond(exchange, 500, e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
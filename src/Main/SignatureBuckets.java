@@ -0,0 +1,302 @@
+package Main;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Subset collection of emails : maps a bit-packed signature to the ids of the emails having it.
+ * Bit i of a signature is set when the email is under hyperplane i.
+ *
+ * Open addressing hash table with linear probing, so a lookup is usually a single probe in a long array.
+ * All the operations are thread-safe, lookups only take a shared read lock.
+ * Once compacted, the id arrays returned by lookups are never modified : adding or removing an email
+ * replaces the array of its bucket, so lookups running at the same time keep a consistent snapshot.
+ */
+class SignatureBuckets {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] keys;
+    private int[][] values;
+    private int[] sizes;
+    private boolean[] used;
+    private int numberSlotsUsed = 0;
+    private int numberBuckets = 0;
+    private int numberEmails = 0;
+    private boolean compacted = false;
+
+    SignatureBuckets() {
+        this(16);
+    }
+
+    /**
+     * @param expectedBuckets The number of buckets expected, to avoid resizing
+     */
+    SignatureBuckets(int expectedBuckets) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedBuckets * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity][];
+        this.sizes = new int[capacity];
+        this.used = new boolean[capacity];
+    }
+
+    /**
+     * Adds an email to the bucket of a signature
+     * @param signature The signature of the email
+     * @param emailId The id of the email
+     */
+    void add(long signature, int emailId) {
+        this.lock.writeLock().lock();
+        try {
+            int slot = this.slot(signature);
+            if(!this.used[slot]) {
+                if((this.numberSlotsUsed + 1) * 2 > this.keys.length) {
+                    this.resize();
+                    slot = this.slot(signature);
+                }
+                this.used[slot] = true;
+                this.keys[slot] = signature;
+                this.values[slot] = new int[this.compacted ? 0 : 4];
+                this.numberSlotsUsed++;
+            }
+            if(this.sizes[slot] == 0) {
+                this.numberBuckets++;
+            }
+
+            int[] bucket = this.values[slot];
+            int size = this.sizes[slot];
+            if(this.compacted) {
+                // Copy on write, keeping the ids sorted
+                int position = Arrays.binarySearch(bucket, 0, size, emailId);
+                position = position < 0 ? -position - 1 : position;
+                int[] updated = new int[size + 1];
+                System.arraycopy(bucket, 0, updated, 0, position);
+                updated[position] = emailId;
+                System.arraycopy(bucket, position, updated, position + 1, size - position);
+                this.values[slot] = updated;
+            } else {
+                if(size == bucket.length) {
+                    bucket = Arrays.copyOf(bucket, Math.max(4, size * 2));
+                    this.values[slot] = bucket;
+                }
+                bucket[size] = emailId;
+            }
+            this.sizes[slot]++;
+            this.numberEmails++;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an email from the bucket of a signature
+     * @param signature The signature of the email
+     * @param emailId The id of the email
+     * @return True if the email was in the bucket
+     */
+    boolean remove(long signature, int emailId) {
+        this.lock.writeLock().lock();
+        try {
+            int slot = this.slot(signature);
+            if(!this.used[slot]) {
+                return false;
+            }
+            int[] bucket = this.values[slot];
+            int size = this.sizes[slot];
+            int position = -1;
+            for(int i = 0; i < size; i++) {
+                if(bucket[i] == emailId) {
+                    position = i;
+                    break;
+                }
+            }
+            if(position < 0) {
+                return false;
+            }
+
+            int[] updated = new int[this.compacted ? size - 1 : bucket.length];
+            System.arraycopy(bucket, 0, updated, 0, position);
+            System.arraycopy(bucket, position + 1, updated, position, size - position - 1);
+            this.values[slot] = updated;
+            this.sizes[slot]--;
+            this.numberEmails--;
+            if(this.sizes[slot] == 0) {
+                this.numberBuckets--;
+            }
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Trims every bucket to its size and sorts its ids, so lookups do not allocate and
+     * the collection does not depend on the order the emails were added in
+     */
+    void compact() {
+        this.lock.writeLock().lock();
+        try {
+            for(int slot = 0; slot < this.keys.length; slot++) {
+                if(this.used[slot]) {
+                    this.values[slot] = Arrays.copyOf(this.values[slot], this.sizes[slot]);
+                    Arrays.sort(this.values[slot]);
+                }
+            }
+            this.compacted = true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the emails having a signature
+     * @param signature The signature
+     * @return The ids of the emails, null if no email has this signature. Must not be modified.
+     */
+    int[] get(long signature) {
+        this.lock.readLock().lock();
+        try {
+            int slot = this.slot(signature);
+            if(!this.used[slot] || this.sizes[slot] == 0) {
+                return null;
+            }
+            return this.compacted ? this.values[slot] : Arrays.copyOf(this.values[slot], this.sizes[slot]);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The signatures of all the non empty buckets
+     */
+    long[] signatures() {
+        this.lock.readLock().lock();
+        try {
+            long[] signatures = new long[this.numberBuckets];
+            int position = 0;
+            for(int slot = 0; slot < this.keys.length; slot++) {
+                if(this.used[slot] && this.sizes[slot] > 0) {
+                    signatures[position++] = this.keys[slot];
+                }
+            }
+            return signatures;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the collection of the first hyperplanes only. Bit i of a signature only depends on hyperplane i,
+     * so the signature of an email under its first hyperplanes is the lowest bits of its full signature.
+     * @param numberHyperplanes The number of hyperplanes kept, at most 64
+     * @return The compacted collection of the first numberHyperplanes hyperplanes
+     */
+    SignatureBuckets prefix(int numberHyperplanes) {
+        long mask = numberHyperplanes >= 64 ? -1L : (1L << numberHyperplanes) - 1;
+        long[] signatures = this.signatures();
+        SignatureBuckets prefix = new SignatureBuckets(numberHyperplanes >= 30
+                ? signatures.length : Math.min(signatures.length, 1 << numberHyperplanes));
+        for(long signature : signatures) {
+            int[] bucket = this.get(signature);
+            if(bucket == null) {
+                continue;
+            }
+            for(int emailId : bucket) {
+                prefix.add(signature & mask, emailId);
+            }
+        }
+        prefix.compact();
+        return prefix;
+    }
+
+    /**
+     * @return The number of non empty buckets
+     */
+    int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.numberBuckets;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of emails in all the buckets
+     */
+    int numberEmails() {
+        this.lock.readLock().lock();
+        try {
+            return this.numberEmails;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The estimated heap footprint of the table, in bytes, assuming compressed references
+     */
+    long memoryBytes() {
+        this.lock.readLock().lock();
+        try {
+            // Key, bucket reference, size and used flag of every slot, then the arrays of the buckets
+            long bytes = this.keys.length * (8L + 4 + 4 + 1);
+            for(int slot = 0; slot < this.keys.length; slot++) {
+                if(this.used[slot]) {
+                    bytes += 16 + 4L * this.values[slot].length;
+                }
+            }
+            return bytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot of a signature : either the slot holding it or the empty slot where it would go
+     * @param signature The signature
+     * @return The slot
+     */
+    private int slot(long signature) {
+        int mask = this.keys.length - 1;
+        int slot = (int) SignatureBuckets.mix(signature) & mask;
+        while(this.used[slot] && this.keys[slot] != signature) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the capacity of the table
+     */
+    private void resize() {
+        long[] oldKeys = this.keys;
+        int[][] oldValues = this.values;
+        int[] oldSizes = this.sizes;
+        boolean[] oldUsed = this.used;
+
+        int capacity = oldKeys.length * 2;
+        this.keys = new long[capacity];
+        this.values = new int[capacity][];
+        this.sizes = new int[capacity];
+        this.used = new boolean[capacity];
+        for(int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if(oldUsed[oldSlot]) {
+                int slot = this.slot(oldKeys[oldSlot]);
+                this.used[slot] = true;
+                this.keys[slot] = oldKeys[oldSlot];
+                this.values[slot] = oldValues[oldSlot];
+                this.sizes[slot] = oldSizes[oldSlot];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a signature, as signatures with few hyperplanes only use the lowest bits
+     * @param signature The signature
+     * @return The mixed hash
+     */
+    private static long mix(long signature) {
+        signature *= 0x9E3779B97F4A7C15L;
+        return signature ^ (signature >>> 32);
+    }
+}
@@ -0,0 +1,56 @@
+package Main;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts how the queries were classified, safe to update from several threads
+ */
+class SpamTally {
+
+    private final String strategy;
+
+    // Spam As Genuine = Tagged as genuine but it actually was a spam message
+    private final AtomicInteger spamAsSpam = new AtomicInteger();
+    private final AtomicInteger genuineAsGenuine = new AtomicInteger();
+    private final AtomicInteger spamAsGenuine = new AtomicInteger();
+    private final AtomicInteger genuineAsSpam = new AtomicInteger();
+
+    /**
+     * @param strategy The name of the classification strategy, such as "1-nearest"
+     */
+    SpamTally(String strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Records the classification of one query
+     * @param isSpam True if the query actually is a spam message
+     * @param isSpamDetected True if the query was tagged as spam
+     */
+    void record(boolean isSpam, boolean isSpamDetected) {
+        if(isSpam) {
+            if(isSpamDetected)
+                this.spamAsSpam.incrementAndGet();
+            else
+                this.spamAsGenuine.incrementAndGet();
+        } else {
+            if(isSpamDetected)
+                this.genuineAsSpam.incrementAndGet();
+            else
+                this.genuineAsGenuine.incrementAndGet();
+        }
+    }
+
+    /**
+     * Displays the rate of every classification outcome
+     */
+    void display() {
+        int sumQueries = this.spamAsGenuine.get() + this.spamAsSpam.get()
+                + this.genuineAsGenuine.get() + this.genuineAsSpam.get();
+        System.err.println("[INFO] " + this.strategy + " Strategy Results - If no messages found, then tagged as Genuine :");
+        System.err.println("------      Spam tagged as spam : " + ((double)this.spamAsSpam.get() / sumQueries));
+        System.err.println("------      Spam tagged as genuine : " + ((double)this.spamAsGenuine.get() / sumQueries));
+        System.err.println("------      Genuine tagged as genuine : " + ((double)this.genuineAsGenuine.get() / sumQueries));
+        System.err.println("------      Genuine tagged as spam : " + ((double)this.genuineAsSpam.get() / sumQueries));
+    }
+}
@@ -0,0 +1,201 @@
+package Main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Term-frequency vector of an email, encoded with the ids of a TermDictionary.
+ * Term ids are sorted in increasing order and counts[i] is the number of occurences of termIds[i].
+ */
+class SparseVector {
+
+    final int[] termIds;
+    final int[] counts;
+    final int squaredNorm;
+    final double norm;
+
+    SparseVector(int[] termIds, int[] counts) {
+        this.termIds = termIds;
+        this.counts = counts;
+        int squaredNorm = 0;
+        for(int count : counts) {
+            squaredNorm += count * count;
+        }
+        this.squaredNorm = squaredNorm;
+        this.norm = Math.sqrt(squaredNorm);
+    }
+
+    /**
+     * Builds the vector of a list of words
+     * @param words The words of an email, with repetitions
+     * @param dictionary The dictionary giving the term ids
+     * @return The vector of the words
+     */
+    static SparseVector of(String[] words, TermDictionary dictionary) {
+        int[] ids = new int[words.length];
+        for(int i = 0; i < words.length; i++) {
+            ids[i] = dictionary.getId(words[i]);
+        }
+        return SparseVector.ofTermIds(ids, ids.length);
+    }
+
+    /**
+     * Builds the vector of a list of words without adding the unknown words to the dictionary.
+     * Unknown words get negative ids, local to the vector : they share no term with any email
+     * but still count in the norm, so distances are the same as with the vector given by of.
+     * @param words The words of an email, with repetitions
+     * @param dictionary The dictionary giving the term ids
+     * @return The vector of the words
+     */
+    static SparseVector ofQuery(String[] words, TermDictionary dictionary) {
+        Map<String, Integer> unknownIds = new HashMap<>();
+        int[] ids = new int[words.length];
+        for(int i = 0; i < words.length; i++) {
+            Integer id = dictionary.findId(words[i]);
+            if(id == null) {
+                id = unknownIds.computeIfAbsent(words[i], w -> -1 - unknownIds.size());
+            }
+            ids[i] = id;
+        }
+        return SparseVector.ofTermIds(ids, ids.length);
+    }
+
+    /**
+     * Builds a vector from the term ids of the words of an email, with repetitions.
+     * The array is sorted in place.
+     * @param ids The term ids
+     * @param length The number of ids to use from the array
+     * @return The vector of the term ids
+     */
+    static SparseVector ofTermIds(int[] ids, int length) {
+        Arrays.sort(ids, 0, length);
+        int distinct = 0;
+        for(int i = 0; i < length; i++) {
+            if(i == 0 || ids[i] != ids[i - 1]) {
+                distinct++;
+            }
+        }
+
+        int[] termIds = new int[distinct];
+        int[] counts = new int[distinct];
+        int position = -1;
+        for(int i = 0; i < length; i++) {
+            if(i == 0 || ids[i] != ids[i - 1]) {
+                position++;
+                termIds[position] = ids[i];
+            }
+            counts[position]++;
+        }
+        return new SparseVector(termIds, counts);
+    }
+
+    /**
+     * @return The number of distinct terms in the vector
+     */
+    int size() {
+        return this.termIds.length;
+    }
+
+    /**
+     * @param other The other vector
+     * @return True if both vectors have the same terms with the same counts, their distance to any vector being equal
+     */
+    boolean sameTerms(SparseVector other) {
+        return Arrays.equals(this.termIds, other.termIds) && Arrays.equals(this.counts, other.counts);
+    }
+
+    /**
+     * Compute the dot product with another vector, merging the two sorted term id arrays
+     * @param other The other vector
+     * @return The dot product
+     */
+    int dot(SparseVector other) {
+        int[] ids1 = this.termIds;
+        int[] ids2 = other.termIds;
+        int i = 0;
+        int j = 0;
+        int dot = 0;
+        while(i < ids1.length && j < ids2.length) {
+            if(ids1[i] == ids2[j]) {
+                dot += this.counts[i++] * other.counts[j++];
+            } else if(ids1[i] < ids2[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return dot;
+    }
+
+    /**
+     * Compute the cosine similarity with another vector. Sorting candidates by decreasing cosine sorts them
+     * by increasing distance, without an acos per candidate.
+     * @param other The other vector
+     * @return The cosine similarity between the two vectors, at most 1
+     */
+    double cosine(SparseVector other) {
+        double cosine = this.dot(other) / (this.norm * other.norm);
+        return cosine > 1 ? 1 : cosine;
+    }
+
+    /**
+     * Compute the cosine similarity with another vector, giving up as soon as it cannot be above a minimum.
+     * While merging the term ids, the dot product of the terms left is at most the product of the norms of the terms
+     * left in both vectors (Cauchy-Schwarz), so the cosine is at most (dot so far + that product) / (norm * norm).
+     * @param other The other vector
+     * @param minimum The cosine to beat, usually the one of the nearest email so far
+     * @return The cosine similarity between the two vectors, or some value not above minimum if it is not above
+     */
+    double cosineAbove(SparseVector other, double minimum) {
+        int[] ids1 = this.termIds;
+        int[] ids2 = other.termIds;
+        double norms = this.norm * other.norm;
+        int left1 = this.squaredNorm;
+        int left2 = other.squaredNorm;
+        int i = 0;
+        int j = 0;
+        int dot = 0;
+        int steps = 0;
+        while(i < ids1.length && j < ids2.length) {
+            // The bound costs a square root, so it is only checked every few steps
+            if((++steps & 7) == 0 && (dot + Math.sqrt((double) left1 * left2)) / norms <= minimum) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int count1 = this.counts[i];
+            int count2 = other.counts[j];
+            if(ids1[i] == ids2[j]) {
+                dot += count1 * count2;
+                left1 -= count1 * count1;
+                left2 -= count2 * count2;
+                i++;
+                j++;
+            } else if(ids1[i] < ids2[j]) {
+                left1 -= count1 * count1;
+                i++;
+            } else {
+                left2 -= count2 * count2;
+                j++;
+            }
+        }
+        double cosine = dot / norms;
+        return cosine > 1 ? 1 : cosine;
+    }
+
+    /**
+     * Compute the distance (angle) with another vector. Gives the same result as Main.computeDistance.
+     * @param other The other vector
+     * @return The distance between the two vectors
+     */
+    double distance(SparseVector other) {
+        return SparseVector.toDistance(this.cosine(other));
+    }
+
+    /**
+     * @param cosine A cosine similarity, at most 1
+     * @return The distance (angle) of the cosine similarity
+     */
+    static double toDistance(double cosine) {
+        return Math.acos(cosine);
+    }
+}
@@ -0,0 +1,118 @@
+package Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible generator of Enron-like emails, so benchmarks do not depend on the real datasets.
+ *
+ * Words follow a Zipf distribution over a fixed vocabulary, as in natural language.
+ * Genuine and spam emails favour different parts of the vocabulary, and spams are drawn from a few templates
+ * with small edits, like the near-duplicate spam campaigns of the Enron-spam datasets.
+ * Every email starts with "Subject: " and file names end with ".ham.txt" or ".spam.txt".
+ */
+class SyntheticCorpus {
+
+    private final static int vocabularySize = 20000;
+    private final static int numberSpamTemplates = 50;
+
+    private final Random random;
+    private final double[] cumulativeZipf;
+    private final List<String[]> spamTemplates = new ArrayList<>();
+
+    /**
+     * @param seed The seed of the generator, the same seed always gives the same emails
+     */
+    SyntheticCorpus(long seed) {
+        this.random = new Random(seed);
+
+        this.cumulativeZipf = new double[vocabularySize];
+        double sum = 0;
+        for(int rank = 0; rank < vocabularySize; rank++) {
+            sum += 1.0 / (rank + 1);
+            this.cumulativeZipf[rank] = sum;
+        }
+        for(int rank = 0; rank < vocabularySize; rank++) {
+            this.cumulativeZipf[rank] /= sum;
+        }
+
+        for(int i = 0; i < numberSpamTemplates; i++) {
+            this.spamTemplates.add(this.words(true, 40 + this.random.nextInt(200)));
+        }
+    }
+
+    /**
+     * Generates the content of an email
+     * @param spam True for a spam, false for a genuine email
+     * @return The content of the email, starting with "Subject: "
+     */
+    String email(boolean spam) {
+        String[] words;
+        if(spam) {
+            words = this.spamTemplates.get(this.random.nextInt(numberSpamTemplates)).clone();
+            for(int i = 0; i < words.length; i++) {
+                if(this.random.nextInt(10) == 0) {
+                    words[i] = this.word(true);
+                }
+            }
+        } else {
+            words = this.words(false, 20 + (int) Math.min(2000, Math.abs(this.random.nextGaussian() * 300)));
+        }
+        return "Subject: " + String.join(" ", words);
+    }
+
+    /**
+     * Writes emails into a folder, half of them being spams
+     * @param folder The folder, created if needed
+     * @param numberEmails The number of emails
+     * @return The written files
+     * @throws IOException If a file could not be written
+     */
+    List<File> writeEmails(File folder, int numberEmails) throws IOException {
+        Path path = Files.createDirectories(folder.toPath());
+        List<File> files = new ArrayList<>();
+        for(int i = 0; i < numberEmails; i++) {
+            boolean spam = this.random.nextBoolean();
+            Path email = path.resolve(String.format("%05d.synthetic.%s.txt", i, spam ? "spam" : "ham"));
+            Files.write(email, this.email(spam).getBytes(StandardCharsets.UTF_8));
+            files.add(email.toFile());
+        }
+        return files;
+    }
+
+    /**
+     * Draws words from the vocabulary
+     * @param spam True to favour the spam part of the vocabulary
+     * @param numberWords The number of words
+     * @return The words
+     */
+    private String[] words(boolean spam, int numberWords) {
+        String[] words = new String[numberWords];
+        for(int i = 0; i < numberWords; i++) {
+            words[i] = this.word(spam);
+        }
+        return words;
+    }
+
+    /**
+     * Draws a word from the vocabulary. The most frequent words are shared,
+     * the rarer ones are shifted depending on the label.
+     * @param spam True to favour the spam part of the vocabulary
+     * @return The word
+     */
+    private String word(boolean spam) {
+        int rank = Arrays.binarySearch(this.cumulativeZipf, this.random.nextDouble());
+        rank = rank < 0 ? -rank - 1 : rank;
+        if(rank > 200 && spam) {
+            rank = (rank + vocabularySize / 2) % vocabularySize;
+        }
+        return "w" + Integer.toString(Math.min(rank, vocabularySize - 1), 36);
+    }
+}
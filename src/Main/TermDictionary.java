@@ -0,0 +1,43 @@
+package Main;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Global dictionary giving every word of the emails a unique int id.
+ * Ids are given in order of first appearance, starting from 0.
+ */
+class TermDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Get the id of a word, giving it a new one if it was never seen before
+     * @param word The word
+     * @return The id of the word
+     */
+    int getId(String word) {
+        Integer id = this.ids.get(word);
+        if(id == null) {
+            id = this.ids.computeIfAbsent(word, w -> this.nextId.getAndIncrement());
+        }
+        return id;
+    }
+
+    /**
+     * Get the id of a word without giving it one
+     * @param word The word
+     * @return The id of the word, null if it was never seen before
+     */
+    Integer findId(String word) {
+        return this.ids.get(word);
+    }
+
+    /**
+     * @return The number of words in the dictionary
+     */
+    int size() {
+        return this.nextId.get();
+    }
+}
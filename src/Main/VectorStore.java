@@ -0,0 +1,209 @@
+package Main;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Shared store of the term-frequency vectors of the emails, keyed by the absolute path of the email.
+ * Every email is read and converted once, then kept in a least recently used cache
+ * bounded by the total number of distinct terms of the cached vectors.
+ * Threads missing the same email at the same time wait for the first one to convert it instead of converting it again.
+ */
+class VectorStore {
+
+    private final long maxTerms;
+    private final Function<String, SparseVector> converter;
+    private final LinkedHashMap<String, SparseVector> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    private long cachedTerms = 0;
+    /** The vectors being loaded, removed once they are cached */
+    private final ConcurrentHashMap<String, CompletableFuture<SparseVector>> loading = new ConcurrentHashMap<>();
+    private volatile MappedCorpus corpus;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxTerms The maximum number of terms kept in memory, summed over all the cached vectors
+     * @param converter Converts the content of an email into its vector
+     */
+    VectorStore(long maxTerms, Function<String, SparseVector> converter) {
+        this.maxTerms = maxTerms;
+        this.converter = converter;
+    }
+
+    /**
+     * Reads the vectors of the emails of a packed corpus from the corpus instead of their files
+     * @param corpus The packed emails
+     */
+    void setCorpus(MappedCorpus corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * Get the vector of an email, reading and converting it only if it is not cached
+     * @param emailPath The absolute path of the email
+     * @return The vector of the email
+     * @throws IOException If the file could not be read
+     */
+    SparseVector get(String emailPath) throws IOException {
+        SparseVector vector = this.getCached(emailPath);
+        if(vector != null) {
+            this.hits.incrementAndGet();
+            return vector;
+        }
+
+        CompletableFuture<SparseVector> future = new CompletableFuture<>();
+        CompletableFuture<SparseVector> pending = this.loading.putIfAbsent(emailPath, future);
+        if(pending != null) {
+            this.hits.incrementAndGet();
+            return VectorStore.join(pending);
+        }
+        try {
+            // The email may have been cached by a load that completed since the first lookup
+            vector = this.getCached(emailPath);
+            if(vector != null) {
+                this.hits.incrementAndGet();
+            } else {
+                this.misses.incrementAndGet();
+                vector = this.put(emailPath, this.load(emailPath), false);
+            }
+            future.complete(vector);
+            return vector;
+        } catch(IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loading.remove(emailPath, future);
+        }
+    }
+
+    /**
+     * Get the vector of an email without caching it, from the packed corpus when the email was packed
+     * @param emailPath The absolute path of the email
+     * @return The vector of the email
+     * @throws IOException If the file could not be read
+     */
+    SparseVector load(String emailPath) throws IOException {
+        SparseVector vector = this.getCached(emailPath);
+        if(vector != null) {
+            return vector;
+        }
+        MappedCorpus corpus = this.corpus;
+        Integer index = corpus != null ? corpus.indexOf(emailPath) : null;
+        return index != null ? corpus.vector(index) : this.converter.apply(Main.getEmailContent(emailPath));
+    }
+
+    /**
+     * Converts the content of an email and adds its vector to the cache, replacing the cached one
+     * @param emailPath The absolute path of the email
+     * @param emailContent The content of the email
+     * @return The vector of the email
+     */
+    SparseVector put(String emailPath, String emailContent) {
+        this.misses.incrementAndGet();
+        return this.put(emailPath, this.converter.apply(emailContent), true);
+    }
+
+    /**
+     * Removes the vector of an email from the cache
+     * @param emailPath The absolute path of the email
+     */
+    void remove(String emailPath) {
+        synchronized (this.cache) {
+            SparseVector previous = this.cache.remove(emailPath);
+            if(previous != null) {
+                this.cachedTerms -= previous.size();
+            }
+        }
+    }
+
+    /**
+     * @param emailPath The absolute path of the email
+     * @return The cached vector of the email, null if it is not cached
+     */
+    private SparseVector getCached(String emailPath) {
+        synchronized (this.cache) {
+            return this.cache.get(emailPath);
+        }
+    }
+
+    /**
+     * Adds a vector to the cache, evicting the least recently used vectors if the store is full
+     * @param emailPath The absolute path of the email
+     * @param vector The vector of the email
+     * @param replace True to replace the cached vector, false to keep it when the email was put meanwhile
+     * @return The vector now cached for the email
+     */
+    private SparseVector put(String emailPath, SparseVector vector, boolean replace) {
+        synchronized (this.cache) {
+            SparseVector previous = this.cache.get(emailPath);
+            if(previous != null && !replace) {
+                return previous;
+            }
+            this.cache.put(emailPath, vector);
+            if(previous != null) {
+                this.cachedTerms -= previous.size();
+            }
+            this.cachedTerms += vector.size();
+
+            Iterator<Map.Entry<String, SparseVector>> eldest = this.cache.entrySet().iterator();
+            while(this.cachedTerms > this.maxTerms && eldest.hasNext()) {
+                Map.Entry<String, SparseVector> entry = eldest.next();
+                if(entry.getValue() == vector) {
+                    break;
+                }
+                this.cachedTerms -= entry.getValue().size();
+                eldest.remove();
+                this.evictions.incrementAndGet();
+            }
+            return vector;
+        }
+    }
+
+    /**
+     * Waits for a vector loaded by another thread
+     * @param future The vector being loaded
+     * @return The vector
+     * @throws IOException If the other thread could not read the file
+     */
+    private static SparseVector join(CompletableFuture<SparseVector> future) throws IOException {
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    long getHits() {
+        return this.hits.get();
+    }
+
+    long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Displays the cache counters, useful to size the store for a dataset
+     */
+    void displayStatistics() {
+        long requests = this.hits.get() + this.misses.get();
+        synchronized (this.cache) {
+            System.err.println("[INFO] Vector store : " + this.cache.size() + " emails, " + this.cachedTerms
+                    + " terms cached, " + this.hits.get() + " hits, " + this.misses.get() + " misses, "
+                    + this.evictions.get() + " evictions, hit rate = "
+                    + (requests == 0 ? 0 : (double) this.hits.get() / requests));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package Main;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Projections of the feature hashing engine with the Vector API, on the widest registers of the machine
+ * (8 ints with AVX2, 16 with AVX-512). Integer products and sums are exact, so the signatures are the same
+ * as with the scalar kernel.
+ *
+ * Only compiled and used with the jdk.incubator.vector module (Java 16 and later) :
+ * javac --add-modules jdk.incubator.vector ... src/Main/*.java src/simd/Main/*.java
+ * java --add-modules jdk.incubator.vector ...
+ */
+class VectorApiKernel implements FeatureHashing.Kernel {
+
+    private final static VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void project(int[] matrix, int rows, int[] features, int[] projections) {
+        int bound = SPECIES.loopBound(features.length);
+        for(int row = 0; row < rows; row++) {
+            int offset = row * features.length;
+            IntVector sums = IntVector.zero(SPECIES);
+            int j = 0;
+            for(; j < bound; j += SPECIES.length()) {
+                IntVector weights = IntVector.fromArray(SPECIES, matrix, offset + j);
+                sums = weights.mul(IntVector.fromArray(SPECIES, features, j)).add(sums);
+            }
+            int projection = sums.reduceLanes(VectorOperators.ADD);
+            for(; j < features.length; j++) {
+                projection += matrix[offset + j] * features[j];
+            }
+            projections[row] = projection;
+        }
+    }
+}